@@ -0,0 +1,331 @@
+/*
+ * These are the running means and variances of the attributes of a stream of
+ * instances, kept with Welford's online algorithm. Adding an instance updates
+ * the mean and the sum of squared differences from the mean of every
+ * attribute in one pass over its values, so the statistics never need the
+ * instances seen before. An instance can be removed again the same way, which
+ * is how a window over a stream forgets the instances it evicts. The variance
+ * is the population variance, the same as the standard deviations KNN
+ * standardises its data with. The statistics of two sets of instances can be
+ * merged with Chan's formula, so a dataset can be summarised in one pass
+ * split between threads by ranges of rows. The smallest and largest value of
+ * every attribute are kept as well.
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+import weka.core.Instances;
+
+public class AttributeStatistics {
+
+    /** The number of rows below which a summary stops forking. */
+    private static final int BATCH_SIZE = 1024;
+
+    // Class properties
+    private final double[] means;
+    private final double[] squaredDifferences;
+    private final double[] minimums;
+    private final double[] maximums;
+    private long numOfValues;
+
+    /**
+     * Constructor for the statistics of an empty stream.
+     * @param numOfAttr The number of attributes.
+     */
+    public AttributeStatistics(int numOfAttr){
+        this.means = new double[numOfAttr];
+        this.squaredDifferences = new double[numOfAttr];
+        this.minimums = new double[numOfAttr];
+        this.maximums = new double[numOfAttr];
+        this.numOfValues = 0;
+        Arrays.fill(minimums, Double.POSITIVE_INFINITY);
+        Arrays.fill(maximums, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Constructor for the statistics of instances that have already been
+     * summarised, such as the training data of a built classifier. Their
+     * smallest and largest values are not known, so they are unbounded.
+     * @param numOfValues The number of instances.
+     * @param means The mean of each attribute.
+     * @param standardDeviations The (population) standard deviation of each
+     * attribute.
+     */
+    public AttributeStatistics(long numOfValues, double[] means,
+            double[] standardDeviations){
+        this.means = means.clone();
+        this.squaredDifferences = new double[means.length];
+        this.minimums = new double[means.length];
+        this.maximums = new double[means.length];
+        this.numOfValues = numOfValues;
+        Arrays.fill(minimums, Double.NEGATIVE_INFINITY);
+        Arrays.fill(maximums, Double.POSITIVE_INFINITY);
+
+        for (int j = 0; j < means.length; j++){
+            squaredDifferences[j] = standardDeviations[j]
+                    * standardDeviations[j] * numOfValues;
+        }
+    }
+
+    /**
+     * Summarises the attributes of a dataset in a single pass. The rows are
+     * split into ranges that are summarised by the threads of a shared
+     * fork/join pool and merged. The ranges and the order they are merged in
+     * do not depend on the number of threads, so neither do the statistics.
+     * @param data The dataset, the class attribute is the last one and is
+     * left out.
+     * @param parallelism The number of threads, 1 to summarise the data on
+     * the calling thread.
+     * @return The statistics of the attributes of the dataset.
+     */
+    public static AttributeStatistics of(Instances data, int parallelism){
+        return of(data, null, parallelism);
+    }
+
+    /**
+     * Summarises some of the rows of a dataset in a single pass, as if they
+     * were a dataset of their own in the given order.
+     * @param data The dataset, the class attribute is the last one and is
+     * left out.
+     * @param rows The positions of the rows, which may repeat, null for
+     * every row.
+     * @param parallelism The number of threads, 1 to summarise the data on
+     * the calling thread.
+     * @return The statistics of the attributes of the rows.
+     */
+    public static AttributeStatistics of(Instances data, int[] rows,
+            int parallelism){
+
+        int numOfRows = rows == null ? data.numInstances() : rows.length;
+
+        if (parallelism <= 1 || numOfRows <= BATCH_SIZE){
+            return summarise(data, rows, 0, numOfRows);
+        }
+
+        return SharedPools.get(parallelism).invoke(
+                new StatisticsTask(data, rows, 0, numOfRows));
+    }
+
+    /**
+     * Summarises a range of rows of a dataset on the calling thread, split
+     * and merged the same way as by the threads of a pool.
+     * @param data The dataset.
+     * @param rows The positions of the rows, null for every row.
+     * @param from The first row.
+     * @param to The row after the last row.
+     * @return The statistics of the rows.
+     */
+    private static AttributeStatistics summarise(Instances data, int[] rows,
+            int from, int to){
+
+        if (to - from <= BATCH_SIZE){
+            // Ignoring the class attribute
+            AttributeStatistics statistics =
+                    new AttributeStatistics(data.numAttributes() - 1);
+            for (int i = from; i < to; i++){
+                statistics.add(data.get(rows == null ? i : rows[i])
+                        .toDoubleArray());
+            }
+            return statistics;
+        }
+
+        int middle = (from + to) >>> 1;
+        AttributeStatistics statistics = summarise(data, rows, from, middle);
+        statistics.merge(summarise(data, rows, middle, to));
+
+        return statistics;
+    }
+
+    /**
+     * Adds the values of an instance to the statistics.
+     * @param values The attribute values of the instance.
+     */
+    public void add(double[] values){
+
+        numOfValues++;
+        double delta;
+
+        for (int j = 0; j < means.length; j++){
+            delta = values[j] - means[j];
+            means[j] += delta / numOfValues;
+            squaredDifferences[j] += delta * (values[j] - means[j]);
+            minimums[j] = Math.min(minimums[j], values[j]);
+            maximums[j] = Math.max(maximums[j], values[j]);
+        }
+    }
+
+    /**
+     * Adds the statistics of another set of instances with Chan's formula,
+     * as if its instances had been added one by one.
+     * @param other The statistics of the other instances, over the same
+     * attributes.
+     */
+    public void merge(AttributeStatistics other){
+
+        if (other.numOfValues == 0){
+            return;
+        }
+
+        long total = numOfValues + other.numOfValues;
+        double delta;
+
+        for (int j = 0; j < means.length; j++){
+            delta = other.means[j] - means[j];
+            means[j] += delta * other.numOfValues / total;
+            squaredDifferences[j] += other.squaredDifferences[j] + delta 
+                    * delta * ((double)numOfValues * other.numOfValues / total);
+            minimums[j] = Math.min(minimums[j], other.minimums[j]);
+            maximums[j] = Math.max(maximums[j], other.maximums[j]);
+        }
+        numOfValues = total;
+    }
+
+    /**
+     * Removes the values of an instance that was added before from the
+     * statistics, by running Welford's update backwards. The smallest and
+     * largest values are kept, so they become bounds.
+     * @param values The attribute values of the instance.
+     */
+    public void remove(double[] values){
+
+        if (numOfValues <= 1){
+            numOfValues = 0;
+            Arrays.fill(means, 0.0);
+            Arrays.fill(squaredDifferences, 0.0);
+            Arrays.fill(minimums, Double.POSITIVE_INFINITY);
+            Arrays.fill(maximums, Double.NEGATIVE_INFINITY);
+            return;
+        }
+
+        numOfValues--;
+        double delta;
+
+        for (int j = 0; j < means.length; j++){
+            delta = values[j] - means[j];
+            means[j] -= delta / numOfValues;
+            squaredDifferences[j] -= delta * (values[j] - means[j]);
+        }
+    }
+
+    /**
+     * Accessor for the number of instances added and not removed.
+     * @return The number of instances.
+     */
+    public long numValues(){
+        return this.numOfValues;
+    }
+
+    /**
+     * Accessor for the number of attributes.
+     * @return The number of attributes.
+     */
+    public int numAttributes(){
+        return this.means.length;
+    }
+
+    /**
+     * Accessor for the mean of an attribute.
+     * @param attr The index of the attribute.
+     * @return The mean of the attribute, 0 if no instance was added.
+     */
+    public double mean(int attr){
+        return this.means[attr];
+    }
+
+    /**
+     * Accessor for the population variance of an attribute.
+     * @param attr The index of the attribute.
+     * @return The variance of the attribute, 0 if no instance was added.
+     */
+    public double variance(int attr){
+        // Rounding can leave a tiny negative sum for a constant attribute
+        return numOfValues == 0 ? 0.0
+                : Math.max(0.0, squaredDifferences[attr] / numOfValues);
+    }
+
+    /**
+     * Accessor for the population standard deviation of an attribute.
+     * @param attr The index of the attribute.
+     * @return The standard deviation of the attribute.
+     */
+    public double standardDeviation(int attr){
+        return Math.sqrt(variance(attr));
+    }
+
+    /**
+     * Accessor for the smallest value of an attribute.
+     * @param attr The index of the attribute.
+     * @return The smallest value added, positive infinity if no instance 
+     * was added.
+     */
+    public double minimum(int attr){
+        return this.minimums[attr];
+    }
+
+    /**
+     * Accessor for the largest value of an attribute.
+     * @param attr The index of the attribute.
+     * @return The largest value added, negative infinity if no instance was
+     * added.
+     */
+    public double maximum(int attr){
+        return this.maximums[attr];
+    }
+
+    /**
+     * This task summarises a range of rows of a dataset. Large ranges are
+     * split in half and summarised in parallel, and the statistics of the
+     * two halves are merged.
+     */
+    private static class StatisticsTask 
+            extends RecursiveTask<AttributeStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Instances data;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructor for a range of rows.
+         * @param data The dataset.
+         * @param rows The positions of the rows, null for every row.
+         * @param from The first row.
+         * @param to The row after the last row.
+         */
+        StatisticsTask(Instances data, int[] rows, int from, int to){
+            this.data = data;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Summarises the rows of the range.
+         * @return The statistics of the rows.
+         */
+        @Override
+        protected AttributeStatistics compute(){
+
+            if (to - from <= BATCH_SIZE){
+                return summarise(data, rows, from, to);
+            }
+
+            int middle = (from + to) >>> 1;
+            StatisticsTask left = new StatisticsTask(data, rows, from, 
+                    middle);
+            StatisticsTask right = new StatisticsTask(data, rows, middle, 
+                    to);
+            left.fork();
+            AttributeStatistics rightStatistics = right.compute();
+            AttributeStatistics statistics = left.join();
+            statistics.merge(rightStatistics);
+
+            return statistics;
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * This is a ball tree index over the feature matrix of the training data. Each
+ * node of the tree is a ball, a centre and a radius that hold all of the
+ * node's instances. Unlike the KD-tree it does not split on single attributes,
+ * so it keeps pruning on high dimensional data. The search uses the triangle
+ * inequality twice: a ball is skipped if even its closest possible point is
+ * further than the K-th neighbour found so far, and inside a leaf an instance
+ * is skipped if its known distance to the centre already rules it out.
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+
+public class BallTree implements NeighbourSearch {
+
+    /** The maximum number of instances in a leaf of the tree. */
+    private static final int LEAF_SIZE = 16;
+
+    /** Guards the pruning against rounding errors of the square roots. */
+    private static final double SLACK = 1e-9;
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final int[] order;
+    private final double[] centreDistances;
+    private double[][] centres;
+    private double[] radius;
+    private int[] start;
+    private int[] end;
+    private int[] rightChild;
+    private int numOfNodes;
+
+    /**
+     * Constructor for building the ball tree.
+     * @param trainData The feature matrix of the training data.
+     */
+    public BallTree(FeatureMatrix trainData){
+
+        int numOfInstances = trainData.numInstances();
+        int initialNodes = 2 * (numOfInstances / LEAF_SIZE + 1);
+
+        this.trainData = trainData;
+        this.order = new int[numOfInstances];
+        this.centreDistances = new double[numOfInstances];
+        this.centres = new double[initialNodes][];
+        this.radius = new double[initialNodes];
+        this.start = new int[initialNodes];
+        this.end = new int[initialNodes];
+        this.rightChild = new int[initialNodes];
+        this.numOfNodes = 0;
+
+        for (int i = 0; i < numOfInstances; i++){
+            order[i] = i;
+        }
+        if (numOfInstances > 0){
+            buildNode(0, numOfInstances);
+        }
+    }
+
+    /**
+     * Searches the tree for the nearest neighbours of an object.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+        if (numOfNodes > 0){
+            neighbours.countDistances(1);
+            searchNode(0, object, neighbours,
+                    Math.sqrt(centreDistance(0, object)));
+        }
+    }
+
+    /**
+     * Builds a node of the tree. Leaves have a right child of -1 and the left
+     * child of an inner node is stored right after it.
+     * @param from The first position of the node's instances in the order.
+     * @param to The position after the node's last instance in the order.
+     * @return The index of the node.
+     */
+    private int buildNode(int from, int to){
+
+        int node = addNode(from, to);
+
+        // Find the centre of the node and the instance furthest from it
+        double[] centre = new double[trainData.numAttributes()];
+        for (int i = from; i < to; i++){
+            for (int j = 0; j < centre.length; j++){
+                centre[j] += trainData.value(order[i], j);
+            }
+        }
+        for (int j = 0; j < centre.length; j++){
+            centre[j] /= (to - from);
+        }
+        centres[node] = centre;
+
+        int furthest = from;
+        for (int i = from; i < to; i++){
+            centreDistances[i] = Math.sqrt(trainData.distance(order[i], centre));
+            if (centreDistances[i] > centreDistances[furthest]){
+                furthest = i;
+            }
+        }
+        radius[node] = centreDistances[furthest];
+
+        if (to - from <= LEAF_SIZE || radius[node] == 0.0){
+            return node;
+        }
+
+        // Split around the furthest instance and the instance furthest from
+        // it, every instance goes to the closer of the two
+        double[] pivotA = trainData.row(order[furthest]);
+        int pivotBIndex = from;
+        double pivotBDistance = -1.0;
+        for (int i = from; i < to; i++){
+            double d = trainData.distance(order[i], pivotA);
+            if (d > pivotBDistance){
+                pivotBDistance = d;
+                pivotBIndex = i;
+            }
+        }
+        double[] pivotB = trainData.row(order[pivotBIndex]);
+
+        int middle = from;
+        for (int i = from; i < to; i++){
+            if (trainData.distance(order[i], pivotA)
+                    <= trainData.distance(order[i], pivotB)){
+                int temp = order[i];
+                order[i] = order[middle];
+                order[middle] = temp;
+                middle++;
+            }
+        }
+        // All instances went to one side, keep them in this leaf
+        if (middle == from || middle == to){
+            return node;
+        }
+
+        // The node arrays may grow while the children are built
+        buildNode(from, middle);
+        int right = buildNode(middle, to);
+        rightChild[node] = right;
+
+        return node;
+    }
+
+    /**
+     * Adds a node to the tree, growing the node arrays if needed.
+     * @param from The first position of the node's instances in the order.
+     * @param to The position after the node's last instance in the order.
+     * @return The index of the node.
+     */
+    private int addNode(int from, int to){
+
+        if (numOfNodes == start.length){
+            int capacity = start.length * 2;
+            centres = Arrays.copyOf(centres, capacity);
+            radius = Arrays.copyOf(radius, capacity);
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+            rightChild = Arrays.copyOf(rightChild, capacity);
+        }
+
+        int node = numOfNodes++;
+        start[node] = from;
+        end[node] = to;
+        rightChild[node] = -1;
+
+        return node;
+    }
+
+    /**
+     * Searches a node of the tree.
+     * @param node The index of the node.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     * @param centreDistance The distance of the object to the node's centre.
+     */
+    private void searchNode(int node, double[] object,
+            NeighbourQueue neighbours, double centreDistance){
+
+        if (rightChild[node] < 0){
+            int computed = 0;
+            for (int i = start[node]; i < end[node]; i++){
+                // Skip instances the triangle inequality rules out
+                if (canPrune(Math.abs(centreDistance - centreDistances[i]),
+                        neighbours.bound())){
+                    continue;
+                }
+                neighbours.offer(trainData.distance(order[i], object,
+                        neighbours.bound()), order[i]);
+                computed++;
+            }
+            neighbours.countDistances(computed);
+            return;
+        }
+
+        int left = node + 1, right = rightChild[node];
+        double leftDistance = Math.sqrt(centreDistance(left, object));
+        double rightDistance = Math.sqrt(centreDistance(right, object));
+        neighbours.countDistances(2);
+
+        // Visit the closer ball first so the bound shrinks sooner
+        if (leftDistance <= rightDistance){
+            visitNode(left, object, neighbours, leftDistance);
+            visitNode(right, object, neighbours, rightDistance);
+        } else {
+            visitNode(right, object, neighbours, rightDistance);
+            visitNode(left, object, neighbours, leftDistance);
+        }
+    }
+
+    /**
+     * Searches a node of the tree unless its ball is out of reach.
+     * @param node The index of the node.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     * @param centreDistance The distance of the object to the node's centre.
+     */
+    private void visitNode(int node, double[] object,
+            NeighbourQueue neighbours, double centreDistance){
+        if (!canPrune(centreDistance - radius[node], neighbours.bound())){
+            searchNode(node, object, neighbours, centreDistance);
+        }
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between the centre of a node
+     * and an object.
+     * @param node The index of the node.
+     * @param object The attribute values of the object.
+     * @return The squared Euclidean distance.
+     */
+    private double centreDistance(int node, double[] object){
+        return trainData.getKernel().distance(centres[node], 0, object, 0,
+                object.length);
+    }
+
+    /**
+     * Checks whether a lower bound on the distance rules out a candidate.
+     * @param lowerBound The lower bound on the (non-squared) distance.
+     * @param bound The squared distance of the current K-th neighbour.
+     * @return True if the candidate cannot be a neighbour, false otherwise.
+     */
+    private static boolean canPrune(double lowerBound, double bound){
+        lowerBound -= SLACK;
+        return lowerBound > 0 && lowerBound * lowerBound > bound;
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * This is a linear search strategy that scans a compact copy of the training
+ * data, in floats or in bytes, which moves a half or an eighth of the bytes of
+ * the doubles through memory. The values of an attribute are quantised to a
+ * byte by splitting the range between its minimum and maximum into 255 equal
+ * steps. The scan keeps a few times K candidates by their compact distances,
+ * which are then ranked again with the exact distances. The largest distance
+ * between an instance and its compact copy is measured when the copy is made,
+ * and an instance that was not a candidate is at least the distance of the
+ * last candidate minus that error away, so if the K-th exact neighbour is
+ * closer than that the neighbours are exact. Otherwise the object is searched
+ * again over the doubles.
+ * The compact copy is kept next to the doubles, which are needed for the
+ * ranking, so the search always holds more memory than the linear search over
+ * the doubles. It only pays off when the doubles are too large for the CPU
+ * caches, or are kept off the heap. On the bundled datasets it trades memory
+ * for nothing. The candidates of each thread are kept between searches, so a
+ * query does not allocate them.
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class CompactSearch implements NeighbourSearch {
+
+    /** The number of candidates kept for each of the K neighbours. */
+    private static final int CANDIDATE_FACTOR = 4;
+
+    /** The least number of candidates kept beyond K. */
+    private static final int MIN_EXTRA_CANDIDATES = 8;
+
+    /** The number of attributes added between checks of the bound. */
+    private static final int ABANDON_BLOCK = 16;
+
+    /** The relative rounding error of a double. */
+    private static final double ROUNDING_ERROR = Math.ulp(1.0);
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final FeatureStorage storage;
+    private final float[] floatValues;
+    private final byte[] byteValues;
+    private final double[] minimums;
+    private final double[] steps;
+    private final double maxError;
+    private final LinearSearch exactSearch;
+    private final ThreadLocal<Candidates> searchCandidates;
+
+    /**
+     * Constructor for initialising the compact search, which copies the
+     * training data into the compact storage.
+     * @param trainData The feature matrix of the training data.
+     * @param storage The storage of the copy, FLOAT or INT8.
+     */
+    public CompactSearch(FeatureMatrix trainData, FeatureStorage storage){
+
+        int numOfInstances = trainData.numInstances();
+        final int numOfAttr = trainData.numAttributes();
+        this.trainData = trainData;
+        this.storage = storage;
+        this.exactSearch = new LinearSearch(trainData);
+
+        if (storage == FeatureStorage.INT8){
+            this.floatValues = null;
+            this.byteValues = new byte[numOfInstances * numOfAttr];
+            this.minimums = new double[numOfAttr];
+            this.steps = new double[numOfAttr];
+            quantise();
+        } else {
+            this.floatValues = new float[numOfInstances * numOfAttr];
+            this.byteValues = null;
+            this.minimums = null;
+            this.steps = null;
+            for (int i = 0; i < numOfInstances; i++){
+                for (int j = 0; j < numOfAttr; j++){
+                    floatValues[i * numOfAttr + j] =
+                            (float)trainData.value(i, j);
+                }
+            }
+        }
+        this.maxError = calculateMaxError();
+        this.searchCandidates = new ThreadLocal<Candidates>(){
+            @Override
+            protected Candidates initialValue(){
+                return new Candidates(numOfAttr);
+            }
+        };
+    }
+
+    /**
+     * Quantises every attribute to a byte, over the range of its values.
+     */
+    private void quantise(){
+
+        int numOfInstances = trainData.numInstances();
+        int numOfAttr = trainData.numAttributes();
+
+        for (int j = 0; j < numOfAttr; j++){
+            double minimum = Double.POSITIVE_INFINITY;
+            double maximum = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < numOfInstances; i++){
+                minimum = Math.min(minimum, trainData.value(i, j));
+                maximum = Math.max(maximum, trainData.value(i, j));
+            }
+            minimums[j] = numOfInstances == 0 ? 0.0 : minimum;
+            steps[j] = maximum > minimum ? (maximum - minimum) / 255 : 0.0;
+
+            for (int i = 0; i < numOfInstances; i++){
+                long level = steps[j] == 0.0 ? 0 : Math.round(
+                        (trainData.value(i, j) - minimums[j]) / steps[j]);
+                byteValues[i * numOfAttr + j] =
+                        (byte)(Math.max(0, Math.min(255, level)) - 128);
+            }
+        }
+    }
+
+    /**
+     * Calculates the largest Euclidean distance between an instance and its
+     * compact copy.
+     * @return The largest error of the compact copy.
+     */
+    private double calculateMaxError(){
+
+        int numOfAttr = trainData.numAttributes();
+        double error = 0.0, difference, total;
+
+        for (int i = 0; i < trainData.numInstances(); i++){
+            total = 0.0;
+            for (int j = 0; j < numOfAttr; j++){
+                difference = trainData.value(i, j) - compactValue(i, j);
+                total += difference * difference;
+            }
+            error = Math.max(error, Math.sqrt(total));
+        }
+
+        return error;
+    }
+
+    /**
+     * Accessor for a value of the compact copy, as a double.
+     * @param row The index of the instance.
+     * @param attr The index of the attribute.
+     * @return The value of the compact copy.
+     */
+    private double compactValue(int row, int attr){
+        int numOfAttr = trainData.numAttributes();
+        if (storage == FeatureStorage.INT8){
+            return minimums[attr]
+                    + (byteValues[row * numOfAttr + attr] + 128) * steps[attr];
+        }
+        return floatValues[row * numOfAttr + attr];
+    }
+
+    /**
+     * Accessor for the largest error of the compact copy.
+     * @return The largest Euclidean distance between an instance and its
+     * compact copy.
+     */
+    public double getMaxError(){
+        return this.maxError;
+    }
+
+    /**
+     * Scans the compact copy for candidates, ranks them again with the exact
+     * distances and checks that no instance left out could be closer.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+
+        int numOfInstances = trainData.numInstances();
+        int numOfAttr = trainData.numAttributes();
+        int k = neighbours.capacity();
+        int numOfCandidates = Math.min(numOfInstances, Math.max(
+                k * CANDIDATE_FACTOR, k + MIN_EXTRA_CANDIDATES));
+        // Ties between candidates are settled the same way for every query
+        Candidates threadCandidates = searchCandidates.get();
+        NeighbourQueue candidates = threadCandidates.queue(numOfCandidates);
+
+        if (storage == FeatureStorage.INT8){
+            scanBytes(object, candidates, threadCandidates);
+        } else {
+            scanFloats(object, candidates);
+        }
+
+        // Rank the candidates by their exact distances, in row order
+        int[] candidateRows = new int[candidates.size()];
+        for (int i = 0; i < candidateRows.length; i++){
+            candidateRows[i] = candidates.index(i);
+        }
+        Arrays.sort(candidateRows);
+        for (int row : candidateRows){
+            neighbours.offer(trainData.distance(row, object), row);
+        }
+        neighbours.countDistances(numOfInstances + candidateRows.length);
+
+        // Instances left out are at least this far, give or take rounding
+        double reach = (Math.sqrt(candidates.bound()) - maxError)
+                * (1 - (numOfAttr + 4) * ROUNDING_ERROR);
+        if (numOfCandidates < numOfInstances
+                && !(Math.sqrt(neighbours.bound()) <= reach)){
+            int numOfDistances = neighbours.getDistanceCount();
+            neighbours.clear();
+            exactSearch.search(object, neighbours);
+            neighbours.countDistances(numOfDistances);
+        }
+    }
+
+    /**
+     * Offers every instance of the float copy to the candidates.
+     * @param object The (standardised) attribute values of the object.
+     * @param candidates The queue of candidates.
+     */
+    private void scanFloats(double[] object, NeighbourQueue candidates){
+
+        int numOfAttr = trainData.numAttributes();
+        double d0, d1, d2, d3, total0, total1, total2, total3, bound;
+
+        for (int i = 0; i < trainData.numInstances(); i++){
+            int offset = i * numOfAttr;
+            bound = candidates.bound();
+            total0 = 0.0;
+            total1 = 0.0;
+            total2 = 0.0;
+            total3 = 0.0;
+            int j = 0;
+            // Four independent sums, checked against the bound every block
+            while (j < numOfAttr - 3){
+                int blockEnd = Math.min(j + ABANDON_BLOCK, numOfAttr - 3);
+                for (; j < blockEnd; j += 4){
+                    d0 = object[j] - floatValues[offset + j];
+                    d1 = object[j + 1] - floatValues[offset + j + 1];
+                    d2 = object[j + 2] - floatValues[offset + j + 2];
+                    d3 = object[j + 3] - floatValues[offset + j + 3];
+                    total0 += d0 * d0;
+                    total1 += d1 * d1;
+                    total2 += d2 * d2;
+                    total3 += d3 * d3;
+                }
+                if ((total0 + total1) + (total2 + total3) > bound){
+                    break;
+                }
+            }
+            // Remaining attributes
+            if ((total0 + total1) + (total2 + total3) <= bound){
+                for (; j < numOfAttr; j++){
+                    d0 = object[j] - floatValues[offset + j];
+                    total0 += d0 * d0;
+                }
+            }
+            candidates.offer((total0 + total1) + (total2 + total3), i);
+        }
+    }
+
+    /**
+     * Offers every instance of the quantised copy to the candidates. The
+     * object is moved into the quantised scale once, so the scan only
+     * subtracts each byte and weights the square by the step of its
+     * attribute. Attributes with a single value add the same to every
+     * distance.
+     * @param object The (standardised) attribute values of the object.
+     * @param candidates The queue of candidates.
+     * @param threadCandidates The arrays of the thread for the object in the
+     * quantised scale.
+     */
+    private void scanBytes(double[] object, NeighbourQueue candidates,
+            Candidates threadCandidates){
+
+        int numOfAttr = trainData.numAttributes();
+        double[] levels = threadCandidates.levels;
+        double[] weights = threadCandidates.weights;
+        double constant = 0.0, difference, bound;
+
+        for (int j = 0; j < numOfAttr; j++){
+            if (steps[j] == 0.0){
+                difference = object[j] - minimums[j];
+                constant += difference * difference;
+            } else {
+                levels[j] = (object[j] - minimums[j]) / steps[j] - 128;
+                weights[j] = steps[j] * steps[j];
+            }
+        }
+
+        double d0, d1, d2, d3, total0, total1, total2, total3;
+
+        for (int i = 0; i < trainData.numInstances(); i++){
+            int offset = i * numOfAttr;
+            bound = candidates.bound();
+            total0 = constant;
+            total1 = 0.0;
+            total2 = 0.0;
+            total3 = 0.0;
+            int j = 0;
+            // Four independent sums, checked against the bound every block
+            while (j < numOfAttr - 3){
+                int blockEnd = Math.min(j + ABANDON_BLOCK, numOfAttr - 3);
+                for (; j < blockEnd; j += 4){
+                    d0 = levels[j] - byteValues[offset + j];
+                    d1 = levels[j + 1] - byteValues[offset + j + 1];
+                    d2 = levels[j + 2] - byteValues[offset + j + 2];
+                    d3 = levels[j + 3] - byteValues[offset + j + 3];
+                    total0 += weights[j] * d0 * d0;
+                    total1 += weights[j + 1] * d1 * d1;
+                    total2 += weights[j + 2] * d2 * d2;
+                    total3 += weights[j + 3] * d3 * d3;
+                }
+                if ((total0 + total1) + (total2 + total3) > bound){
+                    break;
+                }
+            }
+            // Remaining attributes
+            if ((total0 + total1) + (total2 + total3) <= bound){
+                for (; j < numOfAttr; j++){
+                    d0 = levels[j] - byteValues[offset + j];
+                    total0 += weights[j] * d0 * d0;
+                }
+            }
+            candidates.offer((total0 + total1) + (total2 + total3), i);
+        }
+    }
+
+    /**
+     * The candidates of a thread, with the generator that settles their ties
+     * and the arrays the quantised scan moves the object into.
+     */
+    private static class Candidates {
+
+        private final Random rand;
+        private final double[] levels;
+        private final double[] weights;
+        private NeighbourQueue queue;
+
+        /**
+         * Constructor for the candidates of a thread.
+         * @param numOfAttr The number of attributes.
+         */
+        Candidates(int numOfAttr){
+            this.rand = new Random(0);
+            this.levels = new double[numOfAttr];
+            this.weights = new double[numOfAttr];
+        }
+
+        /**
+         * Empties the queue for a new query, and restarts its generator so
+         * that ties are settled the same way for every query.
+         * @param numOfCandidates The number of candidates kept.
+         * @return The empty queue of candidates.
+         */
+        NeighbourQueue queue(int numOfCandidates){
+            rand.setSeed(0);
+            if (queue == null || queue.capacity() != numOfCandidates){
+                queue = new NeighbourQueue(numOfCandidates, rand);
+            } else {
+                queue.clear();
+            }
+            return queue;
+        }
+    }
+
+}
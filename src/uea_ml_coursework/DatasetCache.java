@@ -0,0 +1,294 @@
+/*
+ * This is a binary cache of ARFF datasets. The first time a dataset is loaded
+ * its ARFF file is parsed and a cache file is written next to it, named after
+ * the ARFF file with ".cache" added. Later loads read the cache instead of
+ * parsing the text again, as long as the ARFF file keeps the length and last
+ * modified time recorded in the cache. The cache starts with a magic number
+ * and a format version, then the schema: the relation name, the attribute
+ * names and the values of nominal attributes. The data is stored column by
+ * column. Nominal columns, such as the class, hold the index of each value
+ * (-1 if missing), numeric columns hold floats if every value survives the
+ * conversion unchanged and doubles otherwise, so the cache never changes a
+ * value. The cache is written to a temporary file in the same directory and
+ * then moved over the cache file in one step, so a crash or another process
+ * loading the same dataset never leaves a partly written cache behind. A
+ * cache that cannot be read, or holds more or fewer bytes than its schema
+ * describes, is parsed and written again.
+ */
+package uea_ml_coursework;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import weka.core.Instances;
+import weka.tools.WekaTools;
+
+public class DatasetCache {
+
+    /** The first four bytes of every cache file, "DSET". */
+    public static final int MAGIC = 0x44534554;
+
+    /** The version of the format written by this class. */
+    public static final int VERSION = 1;
+
+    /** The extension added to the name of the ARFF file. */
+    public static final String EXTENSION = ".cache";
+
+    /** A column of doubles. */
+    private static final int DOUBLE_COLUMN = 0;
+
+    /** A column of floats that convert back to the same doubles. */
+    private static final int FLOAT_COLUMN = 1;
+
+    /** A column of nominal value indices. */
+    private static final int NOMINAL_COLUMN = 2;
+
+    /**
+     * Loads a dataset through the cache, the same way WekaTools.loadData
+     * does. Files the cache cannot hold are loaded by WekaTools.loadData.
+     * @param dataLocation The ARFF file of the dataset.
+     * @param shuffle Flag to whether shuffle the order of instances.
+     * @return The dataset (Instances) object, null if it cannot be loaded.
+     */
+    public static Instances loadData(String dataLocation, boolean shuffle){
+
+        Instances data;
+        try{
+            data = read(new File(dataLocation)).toInstances();
+        } catch (IOException | RuntimeException e){
+            return WekaTools.loadData(dataLocation, shuffle);
+        }
+
+        // Set the last attribute as the class value
+        data.setClassIndex(data.numAttributes() - 1);
+        if (shuffle){
+            data.randomize(data.getRandomNumberGenerator(
+                    (long)(Math.random() * 1000)));
+        }
+
+        return data;
+    }
+
+    /**
+     * Reads the values of an ARFF file from its cache, or parses the file and
+     * writes the cache if there is no valid one.
+     * @param arffFile The ARFF file.
+     * @return The reader holding the values of the file.
+     * @throws IOException If the ARFF file cannot be parsed.
+     */
+    public static NumericArffReader read(File arffFile) throws IOException {
+
+        File cacheFile = new File(arffFile.getPath() + EXTENSION);
+
+        if (cacheFile.isFile()){
+            try{
+                NumericArffReader cached = readCache(arffFile, cacheFile);
+                if (cached != null){
+                    return cached;
+                }
+            } catch (IOException | RuntimeException e){
+                // A damaged cache is written again
+            }
+        }
+
+        NumericArffReader reader = NumericArffReader.read(arffFile);
+        try{
+            writeCache(reader, arffFile, cacheFile);
+        } catch (IOException e){
+            System.out.println("There was an issue caching the data\n" + e);
+        }
+
+        return reader;
+    }
+
+    /**
+     * Writes the values of an ARFF file to a temporary file and moves it over
+     * the cache file once it is complete.
+     * @param reader The values of the ARFF file.
+     * @param arffFile The ARFF file.
+     * @param cacheFile The cache file.
+     * @throws IOException If the cache file cannot be written.
+     */
+    private static void writeCache(NumericArffReader reader, File arffFile,
+            File cacheFile) throws IOException {
+
+        File tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getAbsoluteFile().getParentFile());
+        try{
+            writeCacheFile(reader, arffFile, tempFile);
+            Files.move(tempFile.toPath(), cacheFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Writes the values of an ARFF file to a file in the cache format.
+     * @param reader The values of the ARFF file.
+     * @param arffFile The ARFF file.
+     * @param file The file written.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writeCacheFile(NumericArffReader reader, 
+            File arffFile, File file) throws IOException {
+
+        int numOfInstances = reader.numInstances();
+        int numOfAttr = reader.numAttributes();
+        double[] values = reader.getValues();
+
+        try (ModelFile.ModelOutputStream out = new ModelFile.ModelOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(arffFile.length());
+            out.writeLong(arffFile.lastModified());
+
+            // Schema
+            ModelFile.writeString(out, reader.getRelationName());
+            out.writeInt(numOfInstances);
+            out.writeInt(numOfAttr);
+            for (int j = 0; j < numOfAttr; j++){
+                ModelFile.writeString(out, reader.attributeName(j));
+                String[] labels = reader.getNominalValues(j);
+                out.writeInt(labels == null ? -1 : labels.length);
+                if (labels != null){
+                    for (String label : labels){
+                        ModelFile.writeString(out, label);
+                    }
+                }
+            }
+
+            // Columns
+            for (int j = 0; j < numOfAttr; j++){
+                double[] column = new double[numOfInstances];
+                for (int i = 0; i < numOfInstances; i++){
+                    column[i] = values[i * numOfAttr + j];
+                }
+
+                if (reader.getNominalValues(j) != null){
+                    int[] indices = new int[numOfInstances];
+                    for (int i = 0; i < numOfInstances; i++){
+                        indices[i] = Double.isNaN(column[i]) ? -1
+                                : (int)column[i];
+                    }
+                    out.writeInt(NOMINAL_COLUMN);
+                    ModelFile.writeInts(out, indices);
+                } else if (fitsFloats(column)){
+                    float[] floats = new float[numOfInstances];
+                    for (int i = 0; i < numOfInstances; i++){
+                        floats[i] = (float)column[i];
+                    }
+                    out.writeInt(FLOAT_COLUMN);
+                    ModelFile.writeFloats(out, floats);
+                } else {
+                    out.writeInt(DOUBLE_COLUMN);
+                    ModelFile.writeDoubles(out, column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the values of an ARFF file from its cache file.
+     * @param arffFile The ARFF file.
+     * @param cacheFile The cache file.
+     * @return The reader holding the values, null if the cache is not valid
+     * for the ARFF file or is not the length its schema describes.
+     * @throws IOException If the cache file cannot be read.
+     */
+    private static NumericArffReader readCache(File arffFile, File cacheFile)
+            throws IOException {
+
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(),
+                StandardOpenOption.READ)){
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+
+        // The cache must be of this version and made from this ARFF file
+        if (in.remaining() < 24 || in.getInt() != MAGIC
+                || in.getInt() != VERSION || in.getLong() != arffFile.length()
+                || in.getLong() != arffFile.lastModified()){
+            return null;
+        }
+
+        // Schema
+        String relationName = ModelFile.readString(in);
+        int numOfInstances = in.getInt();
+        int numOfAttr = in.getInt();
+        List<String> attributeNames = new ArrayList<String>();
+        List<String[]> nominalValues = new ArrayList<String[]>();
+        for (int j = 0; j < numOfAttr; j++){
+            attributeNames.add(ModelFile.readString(in));
+            int numOfLabels = in.getInt();
+            String[] labels = null;
+            if (numOfLabels >= 0){
+                labels = new String[numOfLabels];
+                for (int v = 0; v < numOfLabels; v++){
+                    labels[v] = ModelFile.readString(in);
+                }
+            }
+            nominalValues.add(labels);
+        }
+
+        // Columns
+        double[] values = new double[numOfInstances * numOfAttr];
+        for (int j = 0; j < numOfAttr; j++){
+            int type = in.getInt();
+            if (type == NOMINAL_COLUMN){
+                int[] indices = ModelFile.readInts(in);
+                for (int i = 0; i < numOfInstances; i++){
+                    values[i * numOfAttr + j] = indices[i] < 0 ? Double.NaN
+                            : indices[i];
+                }
+            } else if (type == FLOAT_COLUMN){
+                float[] floats = ModelFile.readFloats(in);
+                for (int i = 0; i < numOfInstances; i++){
+                    values[i * numOfAttr + j] = floats[i];
+                }
+            } else if (type == DOUBLE_COLUMN){
+                double[] column = ModelFile.readDoubles(in);
+                for (int i = 0; i < numOfInstances; i++){
+                    values[i * numOfAttr + j] = column[i];
+                }
+            } else {
+                throw new IOException("Unknown column type " + type);
+            }
+        }
+
+        // Anything left over means the cache was not written by this schema
+        if (in.hasRemaining()){
+            return null;
+        }
+
+        return new NumericArffReader(relationName, attributeNames,
+                nominalValues, values);
+    }
+
+    /**
+     * Checks whether every value of a column converts to a float and back
+     * without change.
+     * @param column The values of the column.
+     * @return True if the column can be stored as floats, false otherwise.
+     */
+    private static boolean fitsFloats(double[] column){
+        for (double value : column){
+            if ((double)(float)value != value && !Double.isNaN(value)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
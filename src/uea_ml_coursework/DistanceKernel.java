@@ -0,0 +1,564 @@
+/*
+ * This is the kernel that calculates squared Euclidean distances between rows
+ * of flat attribute arrays. Distance calculation dominates every path of the
+ * KNN classifier, so the implementation is chosen once at startup. The scalar
+ * kernel adds one attribute at a time. The unrolled kernel keeps four
+ * independent sums, which removes the dependency between consecutive
+ * additions and lets the JIT compiler pipeline (and on most JVMs vectorise)
+ * the loop. The kernel can be forced with the system property
+ * uea.knn.kernel=scalar|unrolled. Both kernels have early-abandoning
+ * variants, which stop as soon as the partial sum exceeds an upper bound.
+ * The dot product is used by batch classification, which expands the squared
+ * distance into ||a||^2 + ||b||^2 - 2a.b. Rows held off the heap are read
+ * from their buffers directly, without copying them into an array first.
+ */
+package uea_ml_coursework;
+
+import java.nio.DoubleBuffer;
+
+public abstract class DistanceKernel {
+
+    /** The name of the system property that forces a kernel. */
+    public static final String KERNEL_PROPERTY = "uea.knn.kernel";
+
+    /** The number of attributes added between checks of the bound. */
+    private static final int ABANDON_BLOCK = 4;
+
+    /** The number of attributes the unrolled kernel adds between checks. */
+    private static final int UNROLLED_BLOCK = 16;
+
+    /** Below this number of attributes unrolling does not pay off. */
+    private static final int UNROLL_THRESHOLD = 8;
+
+    private static final DistanceKernel SCALAR = new ScalarKernel();
+    private static final DistanceKernel UNROLLED = new UnrolledKernel();
+    private static final DistanceKernel DEFAULT = select(
+            System.getProperty(KERNEL_PROPERTY));
+
+    /**
+     * Accessor for the kernel chosen at startup.
+     * @return The default distance kernel.
+     */
+    public static DistanceKernel getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * Accessor for the kernel that suits a number of attributes. Rows that
+     * are too short to unroll use the scalar kernel.
+     * @param numOfAttr The number of attributes of the rows.
+     * @return The distance kernel.
+     */
+    public static DistanceKernel forAttributes(int numOfAttr){
+        return numOfAttr < UNROLL_THRESHOLD ? SCALAR : DEFAULT;
+    }
+
+    /**
+     * Chooses a kernel by name.
+     * @param name The name of the kernel, null for the default one.
+     * @return The distance kernel.
+     */
+    private static DistanceKernel select(String name){
+        if ("scalar".equalsIgnoreCase(name)){
+            return SCALAR;
+        }
+        return UNROLLED;
+    }
+
+    /**
+     * Accessor for the name of the kernel.
+     * @return The name of the kernel.
+     */
+    public abstract String getName();
+
+    /**
+     * Calculates the squared Euclidean distance between two rows.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param length The number of attributes of the rows.
+     * @return The squared Euclidean distance in a double format.
+     */
+    public abstract double distance(double[] a, int aOffset, double[] b,
+            int bOffset, int length);
+
+    /**
+     * Calculates the squared Euclidean distance between two rows, but stops
+     * once the partial sum is larger than the bound. The partial sum is only
+     * checked every few attributes to keep the loop cheap. A calculation that
+     * is not abandoned gives the same result as the unbounded distance.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param length The number of attributes of the rows.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double distance(double[] a, int aOffset, double[] b, int bOffset,
+            int length, double bound){
+
+        double difference, total = 0.0;
+        int i = 0;
+
+        while (i < length){
+            int end = Math.min(i + ABANDON_BLOCK, length);
+            for (; i < end; i++){
+                difference = a[aOffset + i] - b[bOffset + i];
+                total += difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between two rows, visiting
+     * the attributes in the given order and stopping once the partial sum is
+     * larger than the bound. Visiting the attributes that tend to differ most
+     * first makes the calculation stop sooner.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param order The order in which the attributes are visited.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double distance(double[] a, int aOffset, double[] b, int bOffset,
+            int[] order, double bound){
+
+        double difference, total = 0.0;
+        int i = 0, attr;
+
+        while (i < order.length){
+            int end = Math.min(i + ABANDON_BLOCK, order.length);
+            for (; i < end; i++){
+                attr = order[i];
+                difference = a[aOffset + attr] - b[bOffset + attr];
+                total += difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between a row on a subset of
+     * its columns and a row that only holds those columns, stopping once the
+     * partial sum is larger than the bound. This is how a view of a feature
+     * matrix on a subset of the attributes is compared to an object.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param aColumns The columns of the first row that are compared.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double maskedDistance(double[] a, int aOffset, int[] aColumns,
+            double[] b, int bOffset, double bound){
+
+        double difference, total = 0.0;
+        int i = 0;
+
+        while (i < aColumns.length){
+            int end = Math.min(i + ABANDON_BLOCK, aColumns.length);
+            for (; i < end; i++){
+                difference = a[aOffset + aColumns[i]] - b[bOffset + i];
+                total += difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between a row on a subset of
+     * its columns and a row that only holds those columns, visiting the
+     * columns in the given order and stopping once the partial sum is larger
+     * than the bound. This is how a view visits its attributes when a copy
+     * of it would visit them out of order.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param aColumns The columns of the first row that are compared.
+     * @param order The order in which the columns are visited.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double maskedDistance(double[] a, int aOffset, int[] aColumns,
+            int[] order, double[] b, int bOffset, double bound){
+
+        double difference, total = 0.0;
+        int i = 0, attr;
+
+        while (i < order.length){
+            int end = Math.min(i + ABANDON_BLOCK, order.length);
+            for (; i < end; i++){
+                attr = order[i];
+                difference = a[aOffset + aColumns[attr]] - b[bOffset + attr];
+                total += difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between a row held in a
+     * buffer off the heap and a row of an array, stopping once the partial
+     * sum is larger than the bound. The buffer is read with absolute gets,
+     * so its position is left alone and several threads can share it. Four
+     * independent sums are kept for the same reason as in the unrolled
+     * kernel.
+     * @param a The buffer that holds the first row.
+     * @param aOffset The position of the first row in its buffer.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param length The number of attributes of the rows.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double distance(DoubleBuffer a, int aOffset, double[] b, 
+            int bOffset, int length, double bound){
+
+        double d0, d1, d2, d3;
+        double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+        int i = 0;
+
+        while (i < length - 3){
+            int end = Math.min(i + UNROLLED_BLOCK, length - 3);
+            for (; i < end; i += 4){
+                d0 = a.get(aOffset + i) - b[bOffset + i];
+                d1 = a.get(aOffset + i + 1) - b[bOffset + i + 1];
+                d2 = a.get(aOffset + i + 2) - b[bOffset + i + 2];
+                d3 = a.get(aOffset + i + 3) - b[bOffset + i + 3];
+                total0 += d0 * d0;
+                total1 += d1 * d1;
+                total2 += d2 * d2;
+                total3 += d3 * d3;
+            }
+            if ((total0 + total1) + (total2 + total3) > bound){
+                return (total0 + total1) + (total2 + total3);
+            }
+        }
+        // Remaining attributes
+        for (; i < length; i++){
+            d0 = a.get(aOffset + i) - b[bOffset + i];
+            total0 += d0 * d0;
+        }
+
+        return (total0 + total1) + (total2 + total3);
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between a row held in a
+     * buffer off the heap, on a subset of its columns, and a row that only
+     * holds those columns, stopping once the partial sum is larger than the
+     * bound.
+     * @param a The buffer that holds the first row.
+     * @param aOffset The position of the first row in its buffer.
+     * @param aColumns The columns of the first row that are compared.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param bound The distance above which the result no longer matters.
+     * @return The squared Euclidean distance, or a partial sum larger than the
+     * bound if the calculation was abandoned.
+     */
+    public double maskedDistance(DoubleBuffer a, int aOffset, int[] aColumns,
+            double[] b, int bOffset, double bound){
+
+        double difference, total = 0.0;
+        int i = 0;
+
+        while (i < aColumns.length){
+            int end = Math.min(i + ABANDON_BLOCK, aColumns.length);
+            for (; i < end; i++){
+                difference = a.get(aOffset + aColumns[i]) - b[bOffset + i];
+                total += difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Adds up squared differences that were calculated before, over a subset
+     * of the attributes. The sums are the same as those of the distance of a
+     * row that only holds the subset, so the result is exactly the distance
+     * that row would give if its calculation was not abandoned.
+     * @param squaredDifferences The squared difference of every attribute.
+     * @param columns The attributes of the subset.
+     * @param order The order in which the row visits the attributes of the
+     * subset, or null for their natural order.
+     * @return The squared Euclidean distance over the subset.
+     */
+    public double addSquares(double[] squaredDifferences, int[] columns, 
+            int[] order){
+
+        double total = 0.0;
+
+        for (int i = 0; i < columns.length; i++){
+            total += squaredDifferences[columns[order == null ? i : order[i]]];
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the weighted squared Euclidean distance between two rows,
+     * stopping once the partial sum is larger than the bound.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param weights The weight of each attribute.
+     * @param length The number of attributes of the rows.
+     * @param bound The distance above which the result no longer matters.
+     * @return The weighted squared Euclidean distance, or a partial sum
+     * larger than the bound if the calculation was abandoned.
+     */
+    public double weightedDistance(double[] a, int aOffset, double[] b, 
+            int bOffset, double[] weights, int length, double bound){
+
+        double difference, total = 0.0;
+        int i = 0;
+
+        while (i < length){
+            int end = Math.min(i + ABANDON_BLOCK, length);
+            for (; i < end; i++){
+                difference = a[aOffset + i] - b[bOffset + i];
+                total += weights[i] * difference * difference;
+            }
+            if (total > bound){
+                return total;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Calculates the dot product of two rows. Four independent sums are kept
+     * for the same reason as in the unrolled kernel.
+     * @param a The array that holds the first row.
+     * @param aOffset The position of the first row in its array.
+     * @param b The array that holds the second row.
+     * @param bOffset The position of the second row in its array.
+     * @param length The number of attributes of the rows.
+     * @return The dot product in a double format.
+     */
+    public double dotProduct(double[] a, int aOffset, double[] b, int bOffset,
+            int length){
+
+        double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+        int i = 0;
+
+        for (int end = length - 3; i < end; i += 4){
+            total0 += a[aOffset + i] * b[bOffset + i];
+            total1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            total2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            total3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        // Remaining attributes
+        for (; i < length; i++){
+            total0 += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return (total0 + total1) + (total2 + total3);
+    }
+
+    /**
+     * This kernel adds the squared difference of one attribute at a time.
+     */
+    private static class ScalarKernel extends DistanceKernel {
+
+        @Override
+        public String getName(){
+            return "scalar";
+        }
+
+        @Override
+        public double distance(double[] a, int aOffset, double[] b,
+                int bOffset, int length){
+
+            double difference, total = 0.0;
+
+            for (int i = 0; i < length; i++){
+                difference = a[aOffset + i] - b[bOffset + i];
+                total += difference * difference;
+            }
+
+            return total;
+        }
+
+    }
+
+    /**
+     * This kernel adds four attributes per iteration into separate sums.
+     */
+    private static class UnrolledKernel extends DistanceKernel {
+
+        @Override
+        public String getName(){
+            return "unrolled";
+        }
+
+        @Override
+        public double distance(double[] a, int aOffset, double[] b,
+                int bOffset, int length){
+
+            double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+            double d0, d1, d2, d3;
+            int i = 0;
+
+            for (int end = length - 3; i < end; i += 4){
+                d0 = a[aOffset + i] - b[bOffset + i];
+                d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+                d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+                d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+                total0 += d0 * d0;
+                total1 += d1 * d1;
+                total2 += d2 * d2;
+                total3 += d3 * d3;
+            }
+            // Remaining attributes
+            for (; i < length; i++){
+                d0 = a[aOffset + i] - b[bOffset + i];
+                total0 += d0 * d0;
+            }
+
+            return (total0 + total1) + (total2 + total3);
+        }
+
+        /**
+         * Adds the attributes the same way as the unbounded distance, so a
+         * calculation that is not abandoned gives exactly the same result.
+         */
+        @Override
+        public double distance(double[] a, int aOffset, double[] b,
+                int bOffset, int length, double bound){
+
+            double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+            double d0, d1, d2, d3;
+            int i = 0;
+
+            while (i < length - 3){
+                // Check the bound once per block of unrolled iterations
+                int blockEnd = Math.min(i + UNROLLED_BLOCK, length - 3);
+                for (; i < blockEnd; i += 4){
+                    d0 = a[aOffset + i] - b[bOffset + i];
+                    d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+                    d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+                    d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+                    total0 += d0 * d0;
+                    total1 += d1 * d1;
+                    total2 += d2 * d2;
+                    total3 += d3 * d3;
+                }
+                if ((total0 + total1) + (total2 + total3) > bound){
+                    return (total0 + total1) + (total2 + total3);
+                }
+            }
+            // Remaining attributes
+            for (; i < length; i++){
+                d0 = a[aOffset + i] - b[bOffset + i];
+                total0 += d0 * d0;
+            }
+
+            return (total0 + total1) + (total2 + total3);
+        }
+
+        /**
+         * Adds the attributes in their natural order with four sums, the
+         * same way as the distance between rows.
+         */
+        @Override
+        public double addSquares(double[] squaredDifferences, int[] columns,
+                int[] order){
+
+            if (order != null){
+                return super.addSquares(squaredDifferences, columns, order);
+            }
+
+            double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+            int i = 0;
+
+            for (int end = columns.length - 3; i < end; i += 4){
+                total0 += squaredDifferences[columns[i]];
+                total1 += squaredDifferences[columns[i + 1]];
+                total2 += squaredDifferences[columns[i + 2]];
+                total3 += squaredDifferences[columns[i + 3]];
+            }
+            // Remaining attributes
+            for (; i < columns.length; i++){
+                total0 += squaredDifferences[columns[i]];
+            }
+
+            return (total0 + total1) + (total2 + total3);
+        }
+
+        /**
+         * Adds the columns the same way as the distance between rows that
+         * only hold them, so a view gives exactly the same result as a copy.
+         */
+        @Override
+        public double maskedDistance(double[] a, int aOffset, 
+                int[] aColumns, double[] b, int bOffset, double bound){
+
+            double total0 = 0.0, total1 = 0.0, total2 = 0.0, total3 = 0.0;
+            double d0, d1, d2, d3;
+            int length = aColumns.length, i = 0;
+
+            while (i < length - 3){
+                // Check the bound once per block of unrolled iterations
+                int blockEnd = Math.min(i + UNROLLED_BLOCK, length - 3);
+                for (; i < blockEnd; i += 4){
+                    d0 = a[aOffset + aColumns[i]] - b[bOffset + i];
+                    d1 = a[aOffset + aColumns[i + 1]] - b[bOffset + i + 1];
+                    d2 = a[aOffset + aColumns[i + 2]] - b[bOffset + i + 2];
+                    d3 = a[aOffset + aColumns[i + 3]] - b[bOffset + i + 3];
+                    total0 += d0 * d0;
+                    total1 += d1 * d1;
+                    total2 += d2 * d2;
+                    total3 += d3 * d3;
+                }
+                if ((total0 + total1) + (total2 + total3) > bound){
+                    return (total0 + total1) + (total2 + total3);
+                }
+            }
+            // Remaining attributes
+            for (; i < length; i++){
+                d0 = a[aOffset + aColumns[i]] - b[bOffset + i];
+                total0 += d0 * d0;
+            }
+
+            return (total0 + total1) + (total2 + total3);
+        }
+
+    }
+
+}
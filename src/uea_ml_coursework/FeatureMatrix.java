@@ -0,0 +1,829 @@
+/*
+ * This is a flat, primitive representation of the training data used by the
+ * KNN classifier. The attribute values of every instance are stored row by row
+ * in one contiguous array and the class values in a separate array, so that
+ * queries can scan the training data without going through Weka's Instance
+ * objects. This implementation assumes the class attribute is the last one.
+ * A matrix can also be a view of another one, made of a list of its rows
+ * (which may repeat) and a subset of its columns. A view shares the values of
+ * the matrix it was made from, so it only costs the indices of its rows and
+ * columns. A matrix that is not a view can grow one instance at a time and
+ * have its instances replaced, which is how an updateable KNN adds and evicts
+ * instances without compiling its data again. The values and labels can also
+ * be held off the heap, in direct buffers or in a memory mapped model file, so
+ * very large training sets do not add to the heap the garbage collector has
+ * to manage. A buffer holds at most 2GB, so the values off the heap are split
+ * into chunks of whole rows. A matrix off the heap only orders its attributes
+ * by variance and calculates the squared norms of its instances the first
+ * time they are asked for, so mapping a model file does not read every page
+ * of it.
+ */
+package uea_ml_coursework;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import weka.core.Instances;
+
+public class FeatureMatrix implements Closeable {
+
+    /**
+     * The share of the variance the top quarter of attributes must hold for
+     * the distance to visit attributes by descending variance.
+     */
+    private static final double SKEWED_VARIANCE = 0.5;
+    
+    /** The largest number of bytes in a buffer of values off the heap. */
+    private static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 7;
+
+    // Class properties
+    private double[] values;
+    private int[] labels;
+    private DoubleBuffer[] valueChunks;
+    private IntBuffer labelBuffer;
+    private final int rowsPerChunk;
+    private final int[] rowIndex;
+    private final int[] columnIndex;
+    private final int stride;
+    private int numOfInstances;
+    private final int numOfAttr;
+    private final DistanceKernel kernel;
+    private int[] attributeOrder;
+    private double[] squaredNorms;
+    private double maxSquaredNorm;
+    private volatile boolean summarised;
+
+    /**
+     * Constructor for compiling a dataset into a feature matrix.
+     * @param data The dataset to be compiled. The class attribute is ignored.
+     */
+    public FeatureMatrix(Instances data){
+        this.numOfInstances = data.numInstances();
+        this.numOfAttr = data.numAttributes() - 1;
+        this.values = new double[numOfInstances * numOfAttr];
+        this.labels = new int[numOfInstances];
+        this.valueChunks = null;
+        this.labelBuffer = null;
+        this.rowsPerChunk = 0;
+        this.rowIndex = null;
+        this.columnIndex = null;
+        this.stride = numOfAttr;
+        this.kernel = DistanceKernel.forAttributes(numOfAttr);
+
+        for (int i = 0; i < numOfInstances; i++){
+            int offset = i * numOfAttr;
+            for (int j = 0; j < numOfAttr; j++){
+                values[offset + j] = data.get(i).value(j);
+            }
+            labels[i] = (int)data.get(i).classValue();
+        }
+        summarise();
+    }
+    
+    /**
+     * Constructor for a feature matrix over values that are already flat,
+     * such as a matrix read from a model file.
+     * @param values The attribute values of every instance, row by row.
+     * @param labels The class index of every instance.
+     * @param numOfAttr The number of attributes, excluding the class
+     * attribute.
+     */
+    public FeatureMatrix(double[] values, int[] labels, int numOfAttr){
+        this.numOfInstances = labels.length;
+        this.numOfAttr = numOfAttr;
+        this.values = values;
+        this.labels = labels;
+        this.valueChunks = null;
+        this.labelBuffer = null;
+        this.rowsPerChunk = 0;
+        this.rowIndex = null;
+        this.columnIndex = null;
+        this.stride = numOfAttr;
+        this.kernel = DistanceKernel.forAttributes(numOfAttr);
+        summarise();
+    }
+    
+    /**
+     * Constructor for a feature matrix held off the heap, such as a matrix
+     * mapped from a model file.
+     * @param valueChunks The attribute values of every instance, row by row,
+     * split into chunks of rowsPerChunk rows.
+     * @param rowsPerChunk The number of rows in every chunk but the last.
+     * @param labels The class index of every instance.
+     * @param numOfAttr The number of attributes, excluding the class
+     * attribute.
+     */
+    public FeatureMatrix(DoubleBuffer[] valueChunks, int rowsPerChunk,
+            IntBuffer labels, int numOfAttr){
+        this.numOfInstances = labels.limit();
+        this.numOfAttr = numOfAttr;
+        this.values = null;
+        this.labels = null;
+        this.valueChunks = valueChunks;
+        this.labelBuffer = labels;
+        this.rowsPerChunk = rowsPerChunk;
+        this.rowIndex = null;
+        this.columnIndex = null;
+        this.stride = numOfAttr;
+        this.kernel = DistanceKernel.forAttributes(numOfAttr);
+    }
+    
+    /**
+     * Constructor for a view of another feature matrix.
+     * @param base The feature matrix the view is made from.
+     * @param rows The rows of the base matrix in the view, null for all.
+     * @param columns The columns of the base matrix in the view, null for
+     * all.
+     */
+    private FeatureMatrix(FeatureMatrix base, int[] rows, int[] columns){
+        this.values = base.values;
+        this.labels = base.labels;
+        this.valueChunks = base.valueChunks;
+        this.labelBuffer = base.labelBuffer;
+        this.rowsPerChunk = base.rowsPerChunk;
+        this.stride = base.stride;
+        this.rowIndex = compose(base.rowIndex, rows);
+        this.columnIndex = compose(base.columnIndex, columns);
+        this.numOfInstances = rows == null ? base.numOfInstances 
+                : rows.length;
+        this.numOfAttr = columns == null ? base.numOfAttr : columns.length;
+        this.kernel = DistanceKernel.forAttributes(numOfAttr);
+        // The same order as a copy of the rows and columns, so that both
+        // add up the same distances
+        if (!isOffHeap()){
+            summarise();
+        }
+    }
+    
+    /**
+     * Creates a view of the matrix. The view shares the values of the matrix
+     * and can be searched like any other feature matrix.
+     * @param rows The rows of the view in order, which may repeat, null for
+     * all rows.
+     * @param columns The columns of the view in ascending order, null for all
+     * columns.
+     * @return The view of the matrix.
+     */
+    public FeatureMatrix view(int[] rows, int[] columns){
+        return new FeatureMatrix(this, rows, columns);
+    }
+    
+    /**
+     * Compiles a dataset straight into direct buffers off the heap, one
+     * instance at a time, so its values are never copied into an array on
+     * the heap first. Direct buffers are limited by the JVM option
+     * -XX:MaxDirectMemorySize.
+     * @param data The dataset to be compiled. The class attribute is ignored.
+     * @return The feature matrix off the heap.
+     */
+    public static FeatureMatrix compileOffHeap(Instances data){
+        
+        int numOfInstances = data.numInstances();
+        int numOfAttr = data.numAttributes() - 1;
+        int chunkRows = rowsPerChunk(numOfAttr);
+        DoubleBuffer[] chunks = new DoubleBuffer[
+                (numOfInstances + chunkRows - 1) / chunkRows];
+        IntBuffer labels = ByteBuffer.allocateDirect(4 * numOfInstances)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        
+        for (int c = 0; c < chunks.length; c++){
+            int from = c * chunkRows;
+            int to = Math.min(numOfInstances, from + chunkRows);
+            chunks[c] = ByteBuffer.allocateDirect(8 * (to - from) * numOfAttr)
+                    .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            for (int i = from; i < to; i++){
+                for (int j = 0; j < numOfAttr; j++){
+                    chunks[c].put(data.get(i).value(j));
+                }
+                labels.put((int)data.get(i).classValue());
+            }
+            chunks[c].clear();
+        }
+        labels.clear();
+        
+        return new FeatureMatrix(chunks, chunkRows, labels, numOfAttr);
+    }
+    
+    /**
+     * Finds how many rows fit in a buffer of values off the heap.
+     * @param numOfAttr The number of attributes of a row.
+     * @return The number of rows in a chunk.
+     */
+    public static int rowsPerChunk(int numOfAttr){
+        return Math.max(1, MAX_CHUNK_BYTES / 8 / Math.max(1, numOfAttr));
+    }
+    
+    /**
+     * Checks whether the values of the matrix are held off the heap.
+     * @return True if the values are in buffers, false if in an array.
+     */
+    public boolean isOffHeap(){
+        return this.values == null;
+    }
+    
+    /**
+     * Lets go of the buffers of a matrix off the heap. Java 8 cannot free
+     * direct or mapped buffers explicitly, so their memory is given back once
+     * they are garbage collected, and views of the matrix keep it alive. The
+     * matrix cannot be used after it is closed. Closing a matrix on the heap
+     * does nothing.
+     */
+    @Override
+    public void close(){
+        if (isOffHeap()){
+            this.valueChunks = null;
+            this.labelBuffer = null;
+        }
+    }
+    
+    /**
+     * Adds an instance to the end of the matrix. The arrays grow by half when
+     * they are full, so adding costs the number of attributes on average.
+     * Views made before the matrix grows keep the instances they were made
+     * of.
+     * @param row The attribute values of the instance.
+     * @param label The class index of the instance.
+     * @throws IllegalStateException If the matrix is a view or off the 
+     * heap.
+     */
+    public void append(double[] row, int label){
+        
+        if (rowIndex != null || columnIndex != null){
+            throw new IllegalStateException("Cannot add instances to a view");
+        }
+        if (isOffHeap()){
+            throw new IllegalStateException("Cannot add instances to a "
+                    + "matrix off the heap");
+        }
+        
+        if (numOfInstances == labels.length){
+            int capacity = Math.max(16, numOfInstances + numOfInstances / 2);
+            values = Arrays.copyOf(values, capacity * stride);
+            labels = Arrays.copyOf(labels, capacity);
+            squaredNorms = Arrays.copyOf(squaredNorms, capacity);
+        }
+        
+        int offset = numOfInstances * stride;
+        System.arraycopy(row, 0, values, offset, numOfAttr);
+        labels[numOfInstances] = label;
+        squaredNorms[numOfInstances] = kernel.dotProduct(values, offset, 
+                values, offset, numOfAttr);
+        maxSquaredNorm = Math.max(maxSquaredNorm, 
+                squaredNorms[numOfInstances]);
+        numOfInstances++;
+    }
+    
+    /**
+     * Replaces an instance of the matrix in place.
+     * @param row The index of the instance.
+     * @param rowValues The attribute values of the new instance.
+     * @param label The class index of the new instance.
+     * @throws IllegalStateException If the matrix is a view or off the 
+     * heap.
+     */
+    public void set(int row, double[] rowValues, int label){
+        
+        if (rowIndex != null || columnIndex != null){
+            throw new IllegalStateException("Cannot replace instances of a "
+                    + "view");
+        }
+        if (isOffHeap()){
+            throw new IllegalStateException("Cannot replace instances of a "
+                    + "matrix off the heap");
+        }
+        
+        int offset = row * stride;
+        System.arraycopy(rowValues, 0, values, offset, numOfAttr);
+        labels[row] = label;
+        squaredNorms[row] = kernel.dotProduct(values, offset, values, offset,
+                numOfAttr);
+        maxSquaredNorm = Math.max(maxSquaredNorm, squaredNorms[row]);
+    }
+    
+    /**
+     * Copies a list of rows into a new matrix on the heap, which unlike a
+     * view can grow.
+     * @param rows The rows of the new matrix in order.
+     * @return The new feature matrix.
+     */
+    public FeatureMatrix copy(int[] rows){
+        
+        double[] rowValues = new double[rows.length * numOfAttr];
+        int[] rowLabels = new int[rows.length];
+        
+        for (int i = 0; i < rows.length; i++){
+            System.arraycopy(row(rows[i]), 0, rowValues, i * numOfAttr, 
+                    numOfAttr);
+            rowLabels[i] = label(rows[i]);
+        }
+        
+        return new FeatureMatrix(rowValues, rowLabels, numOfAttr);
+    }
+    
+    /**
+     * Checks whether the matrix is a view of another matrix, or the other
+     * matrix itself.
+     * @param other The other matrix.
+     * @return True if both matrices hold the same values, false otherwise.
+     */
+    public boolean sharesValues(FeatureMatrix other){
+        if (isOffHeap()){
+            return this.valueChunks == other.valueChunks;
+        }
+        return this.values == other.values;
+    }
+    
+    /**
+     * Accessor for the rows of the values a view is made of.
+     * @return The rows of the view, null if it has all rows in order.
+     */
+    public int[] getRowIndex(){
+        return this.rowIndex;
+    }
+    
+    /**
+     * Accessor for the columns of the values a view is made of.
+     * @return The columns of the view, null if it has all columns.
+     */
+    public int[] getColumnIndex(){
+        return this.columnIndex;
+    }
+    
+    /**
+     * Maps the indices of a view onto the values of the matrix.
+     * @param baseIndex The indices of the base matrix, null if it is not a
+     * view.
+     * @param index The indices into the base matrix, null for all of them.
+     * @return The indices into the values of the matrix, null for all.
+     */
+    private static int[] compose(int[] baseIndex, int[] index){
+        
+        if (index == null){
+            return baseIndex;
+        }
+        if (baseIndex == null){
+            return index.clone();
+        }
+        
+        int[] composed = new int[index.length];
+        for (int i = 0; i < index.length; i++){
+            composed[i] = baseIndex[index[i]];
+        }
+        
+        return composed;
+    }
+    
+    /**
+     * Orders the attributes by variance and calculates the squared norms of
+     * the instances, unless it has been done already. Each is a pass over
+     * the values.
+     */
+    private synchronized void summarise(){
+        
+        if (summarised){
+            return;
+        }
+        
+        attributeOrder = orderByVariance();
+        squaredNorms = new double[numOfInstances];
+        maxSquaredNorm = calculateSquaredNorms();
+        summarised = true;
+    }
+    
+    /**
+     * Calculates the squared norm of every instance.
+     * @return The largest squared norm.
+     */
+    private double calculateSquaredNorms(){
+        
+        double maxNorm = 0.0;
+        
+        for (int i = 0; i < numOfInstances; i++){
+            if (columnIndex == null && !isOffHeap()){
+                squaredNorms[i] = kernel.dotProduct(values, offset(i), values,
+                        offset(i), numOfAttr);
+            } else {
+                for (int j = 0; j < numOfAttr; j++){
+                    double value = value(i, j);
+                    squaredNorms[i] += value * value;
+                }
+            }
+            maxNorm = Math.max(maxNorm, squaredNorms[i]);
+        }
+        
+        return maxNorm;
+    }
+    
+    /**
+     * Finds where the values of an instance start.
+     * @param row The index of the instance.
+     * @return The position of the instance in the values.
+     */
+    private int offset(int row){
+        return (rowIndex == null ? row : rowIndex[row]) * stride;
+    }
+    
+    /**
+     * Finds the chunk that holds the values of an instance off the heap.
+     * @param row The index of the instance.
+     * @return The buffer of the chunk.
+     */
+    private DoubleBuffer chunk(int row){
+        return valueChunks[(rowIndex == null ? row : rowIndex[row]) 
+                / rowsPerChunk];
+    }
+    
+    /**
+     * Finds where the values of an instance start in its chunk off the heap.
+     * @param row The index of the instance.
+     * @return The position of the instance in its chunk.
+     */
+    private int chunkOffset(int row){
+        return (rowIndex == null ? row : rowIndex[row]) % rowsPerChunk 
+                * stride;
+    }
+
+    /**
+     * Accessor for the number of instances.
+     * @return The number of rows in the matrix.
+     */
+    public int numInstances(){
+        return this.numOfInstances;
+    }
+
+    /**
+     * Accessor for the number of attributes, excluding the class attribute.
+     * @return The number of columns in the matrix.
+     */
+    public int numAttributes(){
+        return this.numOfAttr;
+    }
+
+    /**
+     * Accessor for the kernel used to calculate distances.
+     * @return The distance kernel.
+     */
+    public DistanceKernel getKernel(){
+        return this.kernel;
+    }
+
+    /**
+     * Accessor for the order in which the bounded distance visits the
+     * attributes.
+     * @return The order of the attributes, null for their natural order.
+     */
+    public int[] getAttributeOrder(){
+        if (!summarised){
+            summarise();
+        }
+        return this.attributeOrder;
+    }
+
+    /**
+     * Accessor for the class index of an instance.
+     * @param row The index of the instance.
+     * @return The class index of the instance.
+     */
+    public int label(int row){
+        int index = rowIndex == null ? row : rowIndex[row];
+        return isOffHeap() ? labelBuffer.get(index) : labels[index];
+    }
+
+    /**
+     * Accessor for a single attribute value.
+     * @param row The index of the instance.
+     * @param attr The index of the attribute.
+     * @return The attribute value.
+     */
+    public double value(int row, int attr){
+        int column = columnIndex == null ? attr : columnIndex[attr];
+        if (isOffHeap()){
+            return chunk(row).get(chunkOffset(row) + column);
+        }
+        return values[offset(row) + column];
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between an instance of the
+     * matrix and an unclassified object.
+     * @param row The index of the classified training instance.
+     * @param object The attribute values of the unclassified object.
+     * @return The squared Euclidean distance in a double format.
+     */
+    public double distance(int row, double[] object){
+        if (isOffHeap()){
+            return distance(row, object, Double.POSITIVE_INFINITY);
+        }
+        if (columnIndex != null){
+            return kernel.maskedDistance(values, offset(row), columnIndex,
+                    object, 0, Double.POSITIVE_INFINITY);
+        }
+        return kernel.distance(values, offset(row), object, 0, numOfAttr);
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between an instance of the
+     * matrix and an unclassified object, but gives up as soon as the distance
+     * is known to be larger than the bound. The attributes with the highest
+     * variance are visited first.
+     * @param row The index of the classified training instance.
+     * @param object The attribute values of the unclassified object.
+     * @param bound The distance above which the instance is of no interest.
+     * @return The squared Euclidean distance, or a value larger than the bound
+     * if the calculation was abandoned.
+     */
+    public double distance(int row, double[] object, double bound){
+        if (isOffHeap()){
+            if (columnIndex != null){
+                return kernel.maskedDistance(chunk(row), chunkOffset(row),
+                        columnIndex, object, 0, bound);
+            }
+            return kernel.distance(chunk(row), chunkOffset(row), object, 0,
+                    numOfAttr, bound);
+        }
+        if (columnIndex != null && attributeOrder != null){
+            return kernel.maskedDistance(values, offset(row), columnIndex,
+                    attributeOrder, object, 0, bound);
+        }
+        if (columnIndex != null){
+            return kernel.maskedDistance(values, offset(row), columnIndex,
+                    object, 0, bound);
+        }
+        if (attributeOrder == null){
+            return kernel.distance(values, offset(row), object, 0,
+                    numOfAttr, bound);
+        }
+        return kernel.distance(values, offset(row), object, 0,
+                attributeOrder, bound);
+    }
+
+    /**
+     * Calculates the weighted squared Euclidean distance between an instance
+     * of the matrix and an unclassified object, but gives up as soon as the
+     * distance is known to be larger than the bound. Weighting the squared
+     * difference of an attribute by the inverse of a variance standardises
+     * it at distance time.
+     * @param row The index of the classified training instance.
+     * @param object The attribute values of the unclassified object.
+     * @param weights The weight of each attribute.
+     * @param bound The distance above which the instance is of no interest.
+     * @return The weighted squared Euclidean distance, or a value larger than
+     * the bound if the calculation was abandoned.
+     */
+    public double distance(int row, double[] object, double[] weights,
+            double bound){
+        if (columnIndex != null || isOffHeap()){
+            double difference, total = 0.0;
+            for (int j = 0; j < numOfAttr; j++){
+                difference = value(row, j) - object[j];
+                total += weights[j] * difference * difference;
+            }
+            return total;
+        }
+        return kernel.weightedDistance(values, offset(row), object, 0, 
+                weights, numOfAttr, bound);
+    }
+
+    /**
+     * Calculates the squared Euclidean distance between two instances of the
+     * matrix.
+     * @param row The index of the first instance.
+     * @param other The index of the second instance.
+     * @return The squared Euclidean distance in a double format.
+     */
+    public double distance(int row, int other){
+        if (isOffHeap()){
+            return distance(row, row(other));
+        }
+        if (columnIndex != null){
+            // Both rows are in the values, so the columns line up
+            return kernel.distance(values, offset(row), values, offset(other),
+                    columnIndex, Double.POSITIVE_INFINITY);
+        }
+        return kernel.distance(values, offset(row), values, offset(other),
+                numOfAttr);
+    }
+
+    /**
+     * Accessor for the squared Euclidean norm of an instance, which is
+     * calculated once when the matrix is compiled.
+     * @param row The index of the instance.
+     * @return The squared norm of the instance.
+     */
+    public double squaredNorm(int row){
+        if (!summarised){
+            summarise();
+        }
+        return squaredNorms[row];
+    }
+
+    /**
+     * Accessor for the largest squared norm of the instances. Once instances
+     * have been replaced, it is an upper bound.
+     * @return The largest squared norm.
+     */
+    public double maxSquaredNorm(){
+        if (!summarised){
+            summarise();
+        }
+        return this.maxSquaredNorm;
+    }
+
+    /**
+     * Calculates the squared Euclidean distances between a tile of objects
+     * and a tile of instances of the matrix, using the expansion
+     * ||a||^2 + ||b||^2 - 2a.b. Both tiles are small enough to stay in the
+     * cache while every pair is visited, and each attribute of an instance is
+     * read once for four objects. Rounding can make the expansion slightly
+     * negative for identical rows, so results are clipped at zero. A view
+     * on a subset of the columns, or a matrix off the heap, calculates every
+     * distance directly.
+     * @param objects The attribute values of the objects, row by row.
+     * @param objectNorms The squared norms of the objects.
+     * @param numOfObjects The number of objects in the tile.
+     * @param fromRow The first instance of the tile.
+     * @param toRow The instance after the last instance of the tile.
+     * @param tileDistances The array the distances are written to, the
+     * distance of object q to instance r is at q * (toRow - fromRow) +
+     * (r - fromRow).
+     */
+    public void distanceTile(double[] objects, double[] objectNorms,
+            int numOfObjects, int fromRow, int toRow, double[] tileDistances){
+
+        int numOfRows = toRow - fromRow;
+        int r = 0;
+
+        if (isOffHeap()){
+            double[] object = new double[numOfAttr];
+            for (int q = 0; q < numOfObjects; q++){
+                System.arraycopy(objects, q * numOfAttr, object, 0, numOfAttr);
+                for (r = 0; r < numOfRows; r++){
+                    tileDistances[q * numOfRows + r] = distance(fromRow + r,
+                            object);
+                }
+            }
+            return;
+        }
+        if (columnIndex != null){
+            for (; r < numOfRows; r++){
+                for (int q = 0; q < numOfObjects; q++){
+                    tileDistances[q * numOfRows + r] = kernel.maskedDistance(
+                            values, offset(fromRow + r), columnIndex, objects,
+                            q * numOfAttr, Double.POSITIVE_INFINITY);
+                }
+            }
+            return;
+        }
+
+        // Two instances and four objects at a time, eight independent sums
+        for (; r + 1 < numOfRows; r += 2){
+            int rowOffset0 = offset(fromRow + r);
+            int rowOffset1 = offset(fromRow + r + 1);
+            int q = 0;
+            for (; q + 3 < numOfObjects; q += 4){
+                int offset0 = q * numOfAttr, offset1 = offset0 + numOfAttr;
+                int offset2 = offset1 + numOfAttr, offset3 = offset2 + numOfAttr;
+                double dot00 = 0.0, dot01 = 0.0, dot02 = 0.0, dot03 = 0.0;
+                double dot10 = 0.0, dot11 = 0.0, dot12 = 0.0, dot13 = 0.0;
+                for (int j = 0; j < numOfAttr; j++){
+                    double value0 = values[rowOffset0 + j];
+                    double value1 = values[rowOffset1 + j];
+                    double object0 = objects[offset0 + j];
+                    double object1 = objects[offset1 + j];
+                    double object2 = objects[offset2 + j];
+                    double object3 = objects[offset3 + j];
+                    dot00 += value0 * object0;
+                    dot01 += value0 * object1;
+                    dot02 += value0 * object2;
+                    dot03 += value0 * object3;
+                    dot10 += value1 * object0;
+                    dot11 += value1 * object1;
+                    dot12 += value1 * object2;
+                    dot13 += value1 * object3;
+                }
+                storeTileDistance(tileDistances, q, r, numOfRows, objectNorms,
+                        fromRow, dot00);
+                storeTileDistance(tileDistances, q + 1, r, numOfRows, 
+                        objectNorms, fromRow, dot01);
+                storeTileDistance(tileDistances, q + 2, r, numOfRows, 
+                        objectNorms, fromRow, dot02);
+                storeTileDistance(tileDistances, q + 3, r, numOfRows, 
+                        objectNorms, fromRow, dot03);
+                storeTileDistance(tileDistances, q, r + 1, numOfRows, 
+                        objectNorms, fromRow, dot10);
+                storeTileDistance(tileDistances, q + 1, r + 1, numOfRows, 
+                        objectNorms, fromRow, dot11);
+                storeTileDistance(tileDistances, q + 2, r + 1, numOfRows, 
+                        objectNorms, fromRow, dot12);
+                storeTileDistance(tileDistances, q + 3, r + 1, numOfRows, 
+                        objectNorms, fromRow, dot13);
+            }
+            // Remaining objects
+            for (; q < numOfObjects; q++){
+                storeTileDistance(tileDistances, q, r, numOfRows, objectNorms,
+                        fromRow, kernel.dotProduct(values, rowOffset0, objects,
+                        q * numOfAttr, numOfAttr));
+                storeTileDistance(tileDistances, q, r + 1, numOfRows, 
+                        objectNorms, fromRow, kernel.dotProduct(values, 
+                        rowOffset1, objects, q * numOfAttr, numOfAttr));
+            }
+        }
+        // Remaining instance
+        for (; r < numOfRows; r++){
+            for (int q = 0; q < numOfObjects; q++){
+                storeTileDistance(tileDistances, q, r, numOfRows, objectNorms,
+                        fromRow, kernel.dotProduct(values, 
+                        offset(fromRow + r), objects, q * numOfAttr, 
+                        numOfAttr));
+            }
+        }
+    }
+
+    /**
+     * Turns a dot product into a squared distance and stores it in a tile.
+     * @param tileDistances The array the distances are written to.
+     * @param q The object of the tile.
+     * @param r The instance of the tile.
+     * @param numOfRows The number of instances in the tile.
+     * @param objectNorms The squared norms of the objects.
+     * @param fromRow The first instance of the tile.
+     * @param dot The dot product of the object and the instance.
+     */
+    private void storeTileDistance(double[] tileDistances, int q, int r,
+            int numOfRows, double[] objectNorms, int fromRow, double dot){
+        double distance = objectNorms[q] + squaredNorms[fromRow + r] - 2 * dot;
+        tileDistances[q * numOfRows + r] = distance > 0 ? distance : 0.0;
+    }
+
+    /**
+     * Finds the order of attributes by descending variance, so that the early
+     * abandoning distance adds the largest differences first. Visiting the
+     * attributes out of order costs an indirection per attribute, so the
+     * order is only used if a few attributes hold most of the variance.
+     * @return The order of the attributes, null if the natural order should
+     * be used (for example when the data is standardised and all variances
+     * are equal).
+     */
+    private int[] orderByVariance(){
+
+        double[] variances = new double[numOfAttr];
+        double totalVariance = 0.0;
+        for (int j = 0; j < numOfAttr; j++){
+            double mean = 0.0, distanceFromMean;
+            for (int i = 0; i < numOfInstances; i++){
+                mean += value(i, j);
+            }
+            mean /= Math.max(1, numOfInstances);
+            for (int i = 0; i < numOfInstances; i++){
+                distanceFromMean = value(i, j) - mean;
+                variances[j] += distanceFromMean * distanceFromMean;
+            }
+            totalVariance += variances[j];
+        }
+
+        // Insertion sort keeps attributes with equal variance in place
+        int[] order = new int[numOfAttr];
+        for (int j = 0; j < numOfAttr; j++){
+            int i = j;
+            while (i > 0 && variances[order[i - 1]] < variances[j]){
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = j;
+        }
+
+        // Check how much of the variance the top quarter of attributes holds
+        double topVariance = 0.0;
+        for (int j = 0; j < Math.max(1, numOfAttr / 4) && j < numOfAttr; j++){
+            topVariance += variances[order[j]];
+        }
+        if (!(topVariance > SKEWED_VARIANCE * totalVariance)){
+            return null;
+        }
+
+        return order;
+    }
+
+    /**
+     * Copies the attribute values of an instance of the matrix.
+     * @param row The index of the instance.
+     * @return The attribute values of the instance.
+     */
+    public double[] row(int row){
+
+        double[] rowValues = new double[numOfAttr];
+        if (columnIndex != null || isOffHeap()){
+            for (int j = 0; j < numOfAttr; j++){
+                rowValues[j] = value(row, j);
+            }
+        } else {
+            System.arraycopy(values, offset(row), rowValues, 0, numOfAttr);
+        }
+
+        return rowValues;
+    }
+
+}
@@ -0,0 +1,19 @@
+/*
+ * These are the precisions the linear search of the KNN classifier can scan
+ * the training data in. The compact precisions are only used to find
+ * candidates, which are then ranked again with the exact values.
+ */
+package uea_ml_coursework;
+
+public enum FeatureStorage {
+
+    /** Scans the doubles of the feature matrix. */
+    DOUBLE,
+
+    /** Scans a copy of the values in single precision, half the bytes. */
+    FLOAT,
+
+    /** Scans a copy quantised to a byte per value, an eighth of the bytes. */
+    INT8
+
+}
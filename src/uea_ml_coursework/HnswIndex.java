@@ -0,0 +1,379 @@
+/*
+ * This is an approximate nearest neighbour index based on Hierarchical
+ * Navigable Small World (HNSW) graphs. Every instance of the training data is
+ * a node of a layered graph, where the upper layers hold fewer nodes and
+ * longer links. A search walks greedily through the upper layers to find a
+ * good entry point and then runs a best-first search on the bottom layer. The
+ * results are not guaranteed to be the exact nearest neighbours, in exchange
+ * for calculating far fewer distances. Each thread marks the nodes it visits
+ * in an array of its own that is reused between searches, and ties are
+ * settled with random numbers seeded by the index seed and the object, so a
+ * search gives the same result on any thread. Inspired by the following:
+ * (https://arxiv.org/abs/1603.09320)
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class HnswIndex implements NeighbourSearch {
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final int m;
+    private final int maxLinks;
+    private final int efConstruction;
+    private final int efSearch;
+    private final int[] levels;
+    private final int[][][] links;
+    private final long seed;
+    private final Random buildRandom;
+    private final VisitMarks buildMarks;
+    private final ThreadLocal<VisitMarks> searchMarks;
+    private int entryPoint;
+    private int topLevel;
+
+    /**
+     * Constructor for building the HNSW graph.
+     * @param trainData The feature matrix of the training data.
+     * @param m The number of links each node gets when it is inserted. The
+     * bottom layer allows twice as many.
+     * @param efConstruction The size of the candidate list while building.
+     * @param efSearch The size of the candidate list while searching, the
+     * search always uses at least K.
+     * @param seed The seed for the random layer assignment and for settling
+     * ties.
+     */
+    public HnswIndex(FeatureMatrix trainData, int m, int efConstruction,
+            int efSearch, long seed){
+
+        this.trainData = trainData;
+        this.m = Math.max(2, m);
+        this.maxLinks = 2 * this.m;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.efSearch = efSearch;
+        this.levels = new int[trainData.numInstances()];
+        this.links = new int[trainData.numInstances()][][];
+        this.seed = seed;
+        this.buildRandom = new Random(seed);
+        this.buildMarks = new VisitMarks(trainData.numInstances());
+        this.searchMarks = VisitMarks.perThread(trainData.numInstances());
+        this.entryPoint = -1;
+        this.topLevel = -1;
+
+        // Each layer holds roughly 1/M of the nodes of the layer below
+        double levelMultiplier = 1 / Math.log(this.m);
+
+        for (int i = 0; i < trainData.numInstances(); i++){
+            levels[i] = (int)(-Math.log(1.0 - buildRandom.nextDouble())
+                    * levelMultiplier);
+            insert(i);
+        }
+    }
+
+    /**
+     * Searches the graph for the (approximate) nearest neighbours of an
+     * object.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+
+        if (entryPoint < 0){
+            return;
+        }
+
+        VisitMarks marks = searchMarks.get();
+        Random rand = new Random(seed ^ Arrays.hashCode(object));
+        int closest = entryPoint;
+        double closestDistance = trainData.distance(entryPoint, object);
+        neighbours.countDistances(1);
+
+        // Walk greedily through the upper layers
+        for (int level = topLevel; level > 0; level--){
+            NeighbourQueue nearest = new NeighbourQueue(1, rand);
+            searchLayer(object, closest, closestDistance, level, nearest,
+                    marks);
+            closest = nearest.index(0);
+            closestDistance = nearest.distance(0);
+            neighbours.countDistances(nearest.getDistanceCount());
+        }
+
+        // Search the bottom layer with the full candidate list
+        NeighbourQueue candidates = new NeighbourQueue(
+                Math.max(efSearch, neighbours.capacity()), rand);
+        searchLayer(object, closest, closestDistance, 0, candidates, marks);
+        neighbours.countDistances(candidates.getDistanceCount());
+
+        for (int i = 0; i < candidates.size(); i++){
+            neighbours.offer(candidates.distance(i), candidates.index(i));
+        }
+    }
+
+    /**
+     * Inserts a node into the graph and links it to its nearest nodes in
+     * every layer it belongs to.
+     * @param node The index of the instance to be inserted.
+     */
+    private void insert(int node){
+
+        int level = levels[node];
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++){
+            // The first element of a link list is the number of links
+            links[node][l] = new int[(l == 0 ? maxLinks : m) + 1];
+        }
+
+        if (entryPoint < 0){
+            entryPoint = node;
+            topLevel = level;
+            return;
+        }
+
+        double[] object = trainData.row(node);
+        int closest = entryPoint;
+        double closestDistance = trainData.distance(entryPoint, object);
+
+        // Walk greedily through the layers above the node's level
+        for (int l = topLevel; l > level; l--){
+            NeighbourQueue nearest = new NeighbourQueue(1, buildRandom);
+            searchLayer(object, closest, closestDistance, l, nearest,
+                    buildMarks);
+            closest = nearest.index(0);
+            closestDistance = nearest.distance(0);
+        }
+
+        // Link the node in each of its layers
+        for (int l = Math.min(level, topLevel); l >= 0; l--){
+            NeighbourQueue candidates = new NeighbourQueue(efConstruction,
+                    buildRandom);
+            searchLayer(object, closest, closestDistance, l, candidates,
+                    buildMarks);
+            candidates.sort();
+
+            int[] selected = selectNeighbours(candidates.size(),
+                    candidates, m);
+            for (int neighbour : selected){
+                addLink(node, neighbour, l);
+                addLink(neighbour, node, l);
+            }
+            closest = candidates.index(0);
+            closestDistance = candidates.distance(0);
+        }
+
+        if (level > topLevel){
+            entryPoint = node;
+            topLevel = level;
+        }
+    }
+
+    /**
+     * Runs a best-first search on one layer of the graph.
+     * @param object The attribute values of the object.
+     * @param entry The node the search starts from.
+     * @param entryDistance The distance of the object to the entry node.
+     * @param level The layer to be searched.
+     * @param results The queue that keeps the closest nodes found.
+     * @param marks The marks of the nodes visited by the thread.
+     */
+    private void searchLayer(double[] object, int entry, double entryDistance,
+            int level, NeighbourQueue results, VisitMarks marks){
+
+        CandidateHeap candidates = new CandidateHeap();
+        int computed = 0;
+
+        marks.clear();
+        marks.visit(entry);
+        candidates.push(entryDistance, entry);
+        results.offer(entryDistance, entry);
+
+        while (candidates.size() > 0){
+            double distance = candidates.peekDistance();
+            int current = candidates.pop();
+
+            // No candidate left can improve the results
+            if (distance > results.bound()){
+                break;
+            }
+
+            int[] nodeLinks = links[current][level];
+            for (int i = 1; i <= nodeLinks[0]; i++){
+                int neighbour = nodeLinks[i];
+                if (!marks.visit(neighbour)){
+                    continue;
+                }
+
+                double neighbourDistance = trainData.distance(neighbour, object);
+                computed++;
+                if (results.offer(neighbourDistance, neighbour)){
+                    candidates.push(neighbourDistance, neighbour);
+                }
+            }
+        }
+        results.countDistances(computed);
+    }
+
+    /**
+     * Selects the nodes to link to from a sorted list of candidates. A
+     * candidate is preferred if it is closer to the object than to any of the
+     * nodes already selected, which keeps links pointing in different
+     * directions. The list is filled up with the closest remaining candidates.
+     * @param count The number of candidates.
+     * @param candidates The candidates in ascending order of distance.
+     * @param limit The maximum number of nodes to select.
+     * @return The indices of the selected nodes.
+     */
+    private int[] selectNeighbours(int count, NeighbourQueue candidates,
+            int limit){
+
+        int[] selected = new int[Math.min(count, limit)];
+        boolean[] used = new boolean[count];
+        int numOfSelected = 0;
+
+        for (int i = 0; i < count && numOfSelected < selected.length; i++){
+            boolean diverse = true;
+            for (int j = 0; j < numOfSelected; j++){
+                if (trainData.distance(candidates.index(i), selected[j])
+                        < candidates.distance(i)){
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse){
+                selected[numOfSelected++] = candidates.index(i);
+                used[i] = true;
+            }
+        }
+
+        for (int i = 0; i < count && numOfSelected < selected.length; i++){
+            if (!used[i]){
+                selected[numOfSelected++] = candidates.index(i);
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Adds a link from one node to another. If the node has too many links
+     * afterwards, its links are selected again from its current links.
+     * @param node The node the link starts from.
+     * @param neighbour The node the link points to.
+     * @param level The layer of the link.
+     */
+    private void addLink(int node, int neighbour, int level){
+
+        int[] nodeLinks = links[node][level];
+        int capacity = nodeLinks.length - 1;
+
+        if (nodeLinks[0] < capacity){
+            nodeLinks[++nodeLinks[0]] = neighbour;
+            return;
+        }
+
+        // Too many links, keep the best ones out of the old and new links
+        NeighbourQueue candidates = new NeighbourQueue(capacity + 1, 
+                buildRandom);
+        for (int i = 1; i <= capacity; i++){
+            candidates.offer(trainData.distance(node, nodeLinks[i]),
+                    nodeLinks[i]);
+        }
+        candidates.offer(trainData.distance(node, neighbour), neighbour);
+        candidates.sort();
+
+        int[] selected = selectNeighbours(candidates.size(), candidates,
+                capacity);
+        nodeLinks[0] = selected.length;
+        for (int i = 0; i < selected.length; i++){
+            nodeLinks[i + 1] = selected[i];
+        }
+    }
+
+    /**
+     * This is a min-heap of candidate nodes ordered by distance, used for
+     * expanding the closest unexplored node first.
+     */
+    private static class CandidateHeap {
+
+        private double[] distances = new double[16];
+        private int[] nodes = new int[16];
+        private int size = 0;
+
+        /**
+         * Accessor for the number of candidates.
+         * @return The number of candidates.
+         */
+        int size(){
+            return size;
+        }
+
+        /**
+         * Accessor for the distance of the closest candidate.
+         * @return The distance of the closest candidate.
+         */
+        double peekDistance(){
+            return distances[0];
+        }
+
+        /**
+         * Adds a candidate to the heap.
+         * @param distance The distance of the candidate.
+         * @param node The index of the candidate.
+         */
+        void push(double distance, int node){
+
+            if (size == nodes.length){
+                distances = Arrays.copyOf(distances, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+
+            int i = size++;
+            while (i > 0){
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance){
+                    break;
+                }
+                distances[i] = distances[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            nodes[i] = node;
+        }
+
+        /**
+         * Removes the closest candidate from the heap.
+         * @return The index of the closest candidate.
+         */
+        int pop(){
+
+            int closest = nodes[0];
+            double lastDistance = distances[--size];
+            int lastNode = nodes[size];
+
+            int i = 0;
+            while (true){
+                int child = 2 * i + 1;
+                if (child >= size){
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] < distances[child]){
+                    child++;
+                }
+                if (distances[child] >= lastDistance){
+                    break;
+                }
+                distances[i] = distances[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            distances[i] = lastDistance;
+            nodes[i] = lastNode;
+
+            return closest;
+        }
+
+    }
+
+}
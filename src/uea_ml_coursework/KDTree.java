@@ -0,0 +1,209 @@
+/*
+ * This is a KD-tree index over the feature matrix of the training data. The
+ * tree is built once by recursively splitting the instances at the median of
+ * the attribute with the widest spread. A search visits the side of a split
+ * that contains the object first and only visits the other side if the split
+ * is closer than the furthest neighbour found so far, so the results are the
+ * same as the exhaustive search.
+ */
+package uea_ml_coursework;
+
+public class KDTree implements NeighbourSearch {
+
+    /** Above this number of attributes the tree rarely prunes anything. */
+    public static final int MAX_ATTRIBUTES = 30;
+
+    /** The maximum number of instances in a leaf of the tree. */
+    private static final int LEAF_SIZE = 16;
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final int[] order;
+    private final int[] splitAttr;
+    private final double[] splitValue;
+    private final int[] start;
+    private final int[] end;
+    private final int[] rightChild;
+    private int numOfNodes;
+
+    /**
+     * Constructor for building the KD-tree.
+     * @param trainData The feature matrix of the training data.
+     */
+    public KDTree(FeatureMatrix trainData){
+
+        int numOfInstances = trainData.numInstances();
+        // Leaves hold at least half of LEAF_SIZE instances
+        int maxNodes = 2 * (numOfInstances / (LEAF_SIZE / 2) + 1);
+
+        this.trainData = trainData;
+        this.order = new int[numOfInstances];
+        this.splitAttr = new int[maxNodes];
+        this.splitValue = new double[maxNodes];
+        this.start = new int[maxNodes];
+        this.end = new int[maxNodes];
+        this.rightChild = new int[maxNodes];
+        this.numOfNodes = 0;
+
+        for (int i = 0; i < numOfInstances; i++){
+            order[i] = i;
+        }
+        if (numOfInstances > 0){
+            buildNode(0, numOfInstances);
+        }
+    }
+
+    /**
+     * Checks whether a KD-tree is worth building for the training data.
+     * @param trainData The feature matrix of the training data.
+     * @return True if the number of attributes is low enough, false otherwise.
+     */
+    public static boolean isSuitable(FeatureMatrix trainData){
+        return trainData.numAttributes() <= MAX_ATTRIBUTES;
+    }
+
+    /**
+     * Searches the tree for the nearest neighbours of an object.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+        if (numOfNodes > 0){
+            searchNode(0, object, neighbours);
+        }
+    }
+
+    /**
+     * Builds a node of the tree. Leaves have a split attribute of -1 and the
+     * left child of an inner node is stored right after it.
+     * @param from The first position of the node's instances in the order.
+     * @param to The position after the node's last instance in the order.
+     * @return The index of the node.
+     */
+    private int buildNode(int from, int to){
+
+        int node = numOfNodes++;
+        start[node] = from;
+        end[node] = to;
+
+        int attr = widestAttribute(from, to);
+        if (to - from <= LEAF_SIZE || attr < 0){
+            splitAttr[node] = -1;
+            return node;
+        }
+
+        // Split at the median of the widest attribute
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, attr);
+        splitAttr[node] = attr;
+        splitValue[node] = trainData.value(order[middle], attr);
+
+        buildNode(from, middle);
+        rightChild[node] = buildNode(middle, to);
+
+        return node;
+    }
+
+    /**
+     * Finds the attribute with the widest spread of values in a range.
+     * @param from The first position of the range in the order.
+     * @param to The position after the last instance of the range.
+     * @return The index of the attribute, -1 if all instances are the same.
+     */
+    private int widestAttribute(int from, int to){
+
+        int widest = -1;
+        double widestSpread = 0.0;
+
+        for (int j = 0; j < trainData.numAttributes(); j++){
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++){
+                double value = trainData.value(order[i], j);
+                if (value < min){
+                    min = value;
+                }
+                if (value > max){
+                    max = value;
+                }
+            }
+            if (max - min > widestSpread){
+                widestSpread = max - min;
+                widest = j;
+            }
+        }
+
+        return widest;
+    }
+
+    /**
+     * Partially sorts a range of the order (quickselect) so that the instance
+     * at position nth has the value it would have if the range was sorted by
+     * the attribute.
+     * @param left The first position of the range.
+     * @param right The last position of the range.
+     * @param nth The position to be selected.
+     * @param attr The attribute to sort by.
+     */
+    private void select(int left, int right, int nth, int attr){
+
+        while (left < right){
+            double pivot = trainData.value(order[(left + right) >>> 1], attr);
+            int i = left, j = right;
+            while (i <= j){
+                while (trainData.value(order[i], attr) < pivot){
+                    i++;
+                }
+                while (trainData.value(order[j], attr) > pivot){
+                    j--;
+                }
+                if (i <= j){
+                    int temp = order[i];
+                    order[i] = order[j];
+                    order[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j){
+                right = j;
+            } else if (nth >= i){
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Searches a node of the tree.
+     * @param node The index of the node.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    private void searchNode(int node, double[] object,
+            NeighbourQueue neighbours){
+
+        if (splitAttr[node] < 0){
+            for (int i = start[node]; i < end[node]; i++){
+                neighbours.offer(trainData.distance(order[i], object,
+                        neighbours.bound()), order[i]);
+            }
+            neighbours.countDistances(end[node] - start[node]);
+            return;
+        }
+
+        double difference = object[splitAttr[node]] - splitValue[node];
+        int near = difference < 0 ? node + 1 : rightChild[node];
+        int far = difference < 0 ? rightChild[node] : node + 1;
+
+        searchNode(near, object, neighbours);
+        // Only visit the other side if it could hold a closer (or as close)
+        // neighbour
+        if (difference * difference <= neighbours.bound()){
+            searchNode(far, object, neighbours);
+        }
+    }
+
+}
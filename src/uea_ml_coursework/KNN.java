@@ -2,14 +2,28 @@
  * This is the implementation of the K-Nearest Neighbour classifier with 
  * additional functionalities. It extends the AbstractClassifier class from
  * the Weka machine learning package. This implementation assumes all attributes
- * are real values.
+ * are real values. A built classifier can be updated with new instances one
+ * at a time, without building it again, and can keep a bounded window of the
+ * instances it is updated with. The training data can be held off the heap,
+ * or mapped straight from a model file.
  */
 package uea_ml_coursework;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Capabilities;
-import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 
@@ -17,27 +31,83 @@ import weka.core.Instances;
  * 10/04/2019
  * @author Bijan Ghasemi Afshar (100125463)
  */
-public class KNN extends AbstractClassifier {
+public class KNN extends AbstractClassifier implements UpdateableClassifier,
+        Closeable {
 
+    /** The largest n by n distance matrix LOOCV is allowed to cache. */
+    private static final long MAX_CACHED_DISTANCES = 1 << 25;
+    
+    /** The number of objects classified together by the batch methods. */
+    private static final int BATCH_OBJECTS = 32;
+    
+    /** The number of training instances in a tile of the batch methods. */
+    private static final int BATCH_ROWS = 128;
+    
+    /** Below this number of attributes tiling does not pay off. */
+    private static final int BATCH_MIN_ATTRIBUTES = 8;
+    
+    /** The number of extra candidates the batch methods check exactly. */
+    private static final int BATCH_EXTRA_CANDIDATES = 8;
+    
+    /** The relative rounding error of a double. */
+    private static final double ROUNDING_ERROR = Math.ulp(1.0);
+    
+    /** The K of the models tested by 10-fold cross validation. */
+    private static final int CROSS_VALIDATION_K = 1;
+    
+    /** The number of held-out instances below which LOOCV stops forking. */
+    private static final int LOOCV_BATCH_SIZE = 32;
+    
+    /** Below this number of instances a tree does not pay off. */
+    private static final int TREE_MIN_INSTANCES = 256;
+    
+    /** The number of training instances a tree is tried on once built. */
+    private static final int TREE_SAMPLE_QUERIES = 32;
+    
+    /** The share of the distances a tree may calculate to be kept. */
+    private static final double TREE_MAX_DISTANCE_SHARE = 0.5;
+    
     // Class properties
     private Instances dataModel;
+    private FeatureMatrix trainData;
+    private NeighbourSearch neighbourSearch;
+    private SearchStrategy searchStrategy;
+    private FeatureStorage featureStorage;
+    private boolean offHeap;
     private boolean standardise;
     private boolean setKAuto;
     private boolean weightedScheme;
+    private boolean loocvDistanceCache;
+    private boolean seeded;
+    private long seed;
+    private int parallelism;
     private double[] means;
     private double[] standardDeviations;
+    private int[] queryColumns;
+    private AttributeStatistics statistics;
+    private double[] attributeWeights;
+    private boolean updated;
+    private StreamWindow streamWindow;
+    private int windowSize;
+    private StreamWindow activeWindow;
+    private int windowCapacity;
+    private long numOfSeen;
+    private int nextSlot;
+    private Random windowRandom;
     private int k;
-    private double[] votes;
-    private int[] votesDiscrete;
+    private int hnswM;
+    private int hnswEfConstruction;
+    private int hnswEfSearch;
+    private int lshTables;
+    private int lshHashes;
+    private double lshBucketWidth;
+    private int numOfClasses;
     
     /**
      * Constructor for initialising the KNN object.
      */
     public KNN(){
-        this.k = 1;
-        this.standardise = true;
-        this.setKAuto = false;
-        this.weightedScheme = false;
+        this(true, false, false);
     }
     
     /**
@@ -45,10 +115,7 @@ public class KNN extends AbstractClassifier {
      * @param standardise Flag to whether standardise values of not.
      */
     public KNN(boolean standardise){
-        this.k = 1;
-        this.standardise = standardise;
-        this.setKAuto = false;
-        this.weightedScheme = false;
+        this(standardise, false, false);
     }
     
     /**
@@ -57,10 +124,7 @@ public class KNN extends AbstractClassifier {
      * @param setK Flag to whether set K automatically through LOOCV.
      */
     public KNN(boolean standardise, boolean setKAuto){
-        this.k = 1;
-        this.standardise = standardise;
-        this.setKAuto = setKAuto;
-        this.weightedScheme = false;
+        this(standardise, setKAuto, false);
     }
     
     /**
@@ -74,6 +138,21 @@ public class KNN extends AbstractClassifier {
         this.standardise = standardise;
         this.setKAuto = setKAuto;
         this.weightedScheme = weightedScheme;
+        this.searchStrategy = SearchStrategy.LINEAR;
+        this.featureStorage = FeatureStorage.DOUBLE;
+        this.offHeap = false;
+        this.loocvDistanceCache = false;
+        this.seeded = false;
+        this.seed = 0;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.hnswM = 16;
+        this.hnswEfConstruction = 200;
+        this.hnswEfSearch = 50;
+        this.lshTables = 10;
+        this.lshHashes = 6;
+        this.lshBucketWidth = 0.0;
+        this.streamWindow = StreamWindow.UNBOUNDED;
+        this.windowSize = 0;
     }
     
     /**
@@ -81,22 +160,26 @@ public class KNN extends AbstractClassifier {
      * @param k The number of closest neighbours considered for classification.
      */
     public void setK(int k){
-        if (dataModel != null){
+        if (trainData != null){
             this.k = k;
-            testKLimit();
+            testKLimit(trainData.numInstances());
         } else {
             this.k = k;
         }
     }
     
     /**
-     * Accessor method for setting the flag of standardise.
+     * Accessor method for setting the flag of standardise. A built
+     * classifier is standardised and compiled again, unless its data model
+     * only keeps its header because the data is off the heap.
      * @param standardise The user flag.
      */
     public void setStandardise(boolean standardise){
-        this.standardise = true;
-        if (standardise){
+        this.standardise = standardise;
+        if (standardise && dataModel != null 
+                && dataModel.numInstances() > 0){
             standardiseDataModelAttr();
+            compileDataModel();
         }
     }
     
@@ -119,6 +202,128 @@ public class KNN extends AbstractClassifier {
         this.weightedScheme = weightedScheme;
     }
     
+    /**
+     * Accessor method for setting the flag of loocvDistanceCache. If set, LOOCV
+     * calculates the distance matrix of the training data once, as long as
+     * it has at most 2^25 entries, instead of scanning the data for every
+     * held-out instance.
+     * @param loocvDistanceCache The user flag.
+     */
+    public void setLoocvDistanceCache(boolean loocvDistanceCache){
+        this.loocvDistanceCache = loocvDistanceCache;
+    }
+    
+    /**
+     * Accessor method for setting the seed of the random number generators.
+     * Once seeded, ties in LOOCV and in scoring are settled the same way on
+     * every run, no matter how many threads are used.
+     * @param seed The seed.
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+        this.seeded = true;
+    }
+    
+    /**
+     * Accessor method for setting the number of threads LOOCV uses.
+     * @param parallelism The number of threads, 1 to run LOOCV on the calling
+     * thread.
+     */
+    public void setParallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
+    /**
+     * Accessor method for setting the strategy used to search for the nearest
+     * neighbours. If the classifier is already built, the search is rebuilt.
+     * @param searchStrategy The search strategy.
+     */
+    public void setSearchStrategy(SearchStrategy searchStrategy){
+        this.searchStrategy = searchStrategy;
+        if (trainData != null){
+            neighbourSearch = createNeighbourSearch();
+        }
+    }
+    
+    /**
+     * Accessor method for setting the precision the linear search scans the
+     * training data in. With a compact storage the scan finds candidates,
+     * which are ranked again with the exact values, so the neighbours do not
+     * change. The compact copy is kept next to the doubles, so it always
+     * adds memory. It only pays off when the training data is too large for
+     * the CPU caches, or with setOffHeap, where the doubles leave the heap.
+     * On the bundled datasets it trades memory for nothing. If the 
+     * classifier is already built, the search is rebuilt.
+     * @param featureStorage The storage scanned by the linear search.
+     */
+    public void setFeatureStorage(FeatureStorage featureStorage){
+        this.featureStorage = featureStorage;
+        if (trainData != null){
+            neighbourSearch = createNeighbourSearch();
+        }
+    }
+    
+    /**
+     * Accessor method for setting the flag of offHeap. If set, the training
+     * data is compiled into direct buffers off the heap, so a large training
+     * set does not add to the heap the garbage collector scans, and the data
+     * model only keeps its header. It takes effect the next time the 
+     * classifier is built, and a classifier with its data off the heap 
+     * cannot be updated.
+     * @param offHeap The user flag.
+     */
+    public void setOffHeap(boolean offHeap){
+        this.offHeap = offHeap;
+    }
+    
+    /**
+     * Accessor method for setting the parameters of the HNSW search strategy.
+     * If the classifier is already built, the search is rebuilt.
+     * @param m The number of links of each node in the graph.
+     * @param efConstruction The size of the candidate list while building.
+     * @param efSearch The size of the candidate list while searching.
+     */
+    public void setHnswParameters(int m, int efConstruction, int efSearch){
+        this.hnswM = m;
+        this.hnswEfConstruction = efConstruction;
+        this.hnswEfSearch = efSearch;
+        if (trainData != null){
+            neighbourSearch = createNeighbourSearch();
+        }
+    }
+    
+    /**
+     * Accessor method for setting the parameters of the LSH search strategy.
+     * If the classifier is already built, the search is rebuilt.
+     * @param numOfTables The number of hash tables.
+     * @param numOfHashes The number of hashes concatenated in each table.
+     * @param bucketWidth The width of the buckets on each projection, zero
+     * to estimate it from the training data.
+     */
+    public void setLshParameters(int numOfTables, int numOfHashes, 
+            double bucketWidth){
+        this.lshTables = numOfTables;
+        this.lshHashes = numOfHashes;
+        this.lshBucketWidth = bucketWidth;
+        if (trainData != null){
+            neighbourSearch = createNeighbourSearch();
+        }
+    }
+    
+    /**
+     * Accessor method for setting how many instances the classifier keeps
+     * while it is updated. The window takes effect from the first update
+     * after the classifier is built, when the training data is cut down to
+     * fit it if needed.
+     * @param streamWindow The way instances are evicted.
+     * @param windowSize The largest number of instances kept, ignored if the
+     * window is unbounded.
+     */
+    public void setStreamWindow(StreamWindow streamWindow, int windowSize){
+        this.streamWindow = streamWindow;
+        this.windowSize = Math.max(1, windowSize);
+    }
+    
     /**
      * Accessor for K.
      * @return The value of K.
@@ -151,6 +356,122 @@ public class KNN extends AbstractClassifier {
         return this.weightedScheme;
     }
     
+    /**
+     * Accessor for loocvDistanceCache.
+     * @return The boolean value of loocvDistanceCache.
+     */
+    public boolean getLoocvDistanceCache(){
+        return this.loocvDistanceCache;
+    }
+    
+    /**
+     * Accessor for the seed.
+     * @return The seed of the random number generators.
+     */
+    public long getSeed(){
+        return this.seed;
+    }
+    
+    /**
+     * Accessor for the parallelism.
+     * @return The number of threads LOOCV uses.
+     */
+    public int getParallelism(){
+        return this.parallelism;
+    }
+    
+    /**
+     * Accessor for the search strategy.
+     * @return The strategy used to search for the nearest neighbours.
+     */
+    public SearchStrategy getSearchStrategy(){
+        return this.searchStrategy;
+    }
+    
+    /**
+     * Accessor for the precision the linear search scans the training data
+     * in.
+     * @return The feature storage.
+     */
+    public FeatureStorage getFeatureStorage(){
+        return this.featureStorage;
+    }
+    
+    /**
+     * Accessor for the flag of offHeap.
+     * @return True if the training data is compiled off the heap.
+     */
+    public boolean getOffHeap(){
+        return this.offHeap;
+    }
+    
+    /**
+     * Accessor for the M parameter of the HNSW search strategy.
+     * @return The number of links of each node in the graph.
+     */
+    public int getHnswM(){
+        return this.hnswM;
+    }
+    
+    /**
+     * Accessor for the efConstruction parameter of the HNSW search strategy.
+     * @return The size of the candidate list while building.
+     */
+    public int getHnswEfConstruction(){
+        return this.hnswEfConstruction;
+    }
+    
+    /**
+     * Accessor for the efSearch parameter of the HNSW search strategy.
+     * @return The size of the candidate list while searching.
+     */
+    public int getHnswEfSearch(){
+        return this.hnswEfSearch;
+    }
+    
+    /**
+     * Accessor for the number of tables of the LSH search strategy.
+     * @return The number of hash tables.
+     */
+    public int getLshTables(){
+        return this.lshTables;
+    }
+    
+    /**
+     * Accessor for the number of hashes of the LSH search strategy.
+     * @return The number of hashes concatenated in each table.
+     */
+    public int getLshHashes(){
+        return this.lshHashes;
+    }
+    
+    /**
+     * Accessor for the bucket width of the LSH search strategy.
+     * @return The width of the buckets on each projection, zero if it is
+     * estimated from the training data.
+     */
+    public double getLshBucketWidth(){
+        return this.lshBucketWidth;
+    }
+    
+    /**
+     * Accessor for the way instances are evicted while the classifier is
+     * updated.
+     * @return The stream window.
+     */
+    public StreamWindow getStreamWindow(){
+        return this.streamWindow;
+    }
+    
+    /**
+     * Accessor for the largest number of instances kept while the classifier
+     * is updated.
+     * @return The size of the stream window.
+     */
+    public int getWindowSize(){
+        return this.windowSize;
+    }
+    
     /**
      * Accessor for weighted vote values.
      * @param object The object to be classified.
@@ -158,55 +479,613 @@ public class KNN extends AbstractClassifier {
      * weightedVotes is set to true.
      */
     public double[] getWeightedVotes(Instance object){
-        classifyInstance(object);
+        VoteResult result = score(object);
         if (this.weightedScheme){
-            return this.votes;
+            return result.getVotes();
         } else {
             return null;
         }
     }
     
     /**
-     * Accessor for data model.
-     * @return The data model.
+     * Accessor for data model.
+     * @return The data model, only its header if the data is off the heap.
+     */
+    public Instances getDataModel(){
+        return dataModel;
+    }
+    
+    /**
+     * Accessor for the feature matrix the data model is compiled into.
+     * @return The (standardised) feature matrix of the training data.
+     */
+    public FeatureMatrix getFeatureMatrix(){
+        return trainData;
+    }
+    
+    /**
+     * Accessor for the running statistics of the attributes of the instances
+     * kept since the classifier was first updated.
+     * @return The statistics of the attributes, null if the classifier has
+     * not been updated or does not standardise the data.
+     */
+    public AttributeStatistics getStatistics(){
+        return statistics;
+    }
+    
+    /**
+     * Builds the classifier by storing the training data.
+     * @param data The classified training data
+     * @throws Exception 
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        dataModel = data;
+        numOfClasses = dataModel.numClasses();
+        
+        // Delete instances with no class value
+        dataModel.deleteWithMissingClass();
+        
+        // Deleting attributes that are not supported (not numeric)
+        for (int i = dataModel.numAttributes() - 2; i >= 0; i--){
+            if (!getCapabilities().test(dataModel.attribute(i))){
+                dataModel.deleteAttributeAt(i);
+            }
+        }
+
+        // Set K to highest value if K is larger than number of data model
+        testKLimit(dataModel.numInstances());
+        queryColumns = null;
+        resetUpdates();
+     
+        // Standardise attributes if flag is set
+        if (standardise){   
+            standardiseDataModelAttr();
+        }
+        
+        // Compile the data model into a flat matrix for fast queries
+        compileDataModel();
+        
+        // Set K through LOOCV
+        if (setKAuto){
+            setKWithLOOCV();
+        }
+        
+    }
+    
+    /**
+     * Builds the classifier on a subset of the attributes of the training
+     * data. Objects are compared on the same attributes, so the classifier
+     * classifies objects that have every attribute of the training data.
+     * Attributes that are not supported are left out of the subset.
+     * @param data The classified training data, which is not changed.
+     * @param columns The attributes used in ascending order.
+     * @throws Exception 
+     */
+    public void buildClassifier(Instances data, int[] columns) 
+            throws Exception {
+        
+        Instances subset = new Instances(data);
+        int[] kept = new int[columns.length];
+        int numOfKept = columns.length, next = columns.length - 1;
+        
+        // Remove the attributes that are not kept, from the last one down
+        for (int j = subset.numAttributes() - 2; j >= 0; j--){
+            if (next >= 0 && columns[next] == j){
+                next--;
+                if (getCapabilities().test(subset.attribute(j))){
+                    kept[--numOfKept] = j;
+                    continue;
+                }
+            }
+            subset.deleteAttributeAt(j);
+        }
+        
+        buildClassifier(subset);
+        queryColumns = Arrays.copyOfRange(kept, numOfKept, kept.length);
+    }
+    
+    /**
+     * Builds the classifier over the training data of another classifier,
+     * without copying it. The classifier uses a view of the other's feature
+     * matrix, made of a list of its rows and a subset of its attributes, and
+     * standardises objects the way the other classifier standardised its
+     * data. The data model stays empty.
+     * @param base The classifier that holds the training data.
+     * @param rows The rows of the training data in order, which may repeat,
+     * null for all rows.
+     * @param columns The attributes used in ascending order, null for all of
+     * them.
+     */
+    public void buildClassifier(KNN base, int[] rows, int[] columns){
+        dataModel = null;
+        numOfClasses = base.numOfClasses;
+        standardise = base.standardise;
+        means = selectColumns(base.means, columns);
+        standardDeviations = selectColumns(base.standardDeviations, columns);
+        queryColumns = columns == null ? base.queryColumns 
+                : composeColumns(base.queryColumns, columns);
+        resetUpdates();
+        
+        trainData = base.trainData.view(rows, columns);
+        neighbourSearch = createNeighbourSearch();
+        testKLimit(trainData.numInstances());
+        
+        // Set K through LOOCV
+        if (setKAuto){
+            setKWithLOOCV();
+        }
+    }
+    
+    /**
+     * Checks whether a view of the training data of another classifier would
+     * standardise objects exactly as a copy of the same rows and attributes
+     * would. A copy standardises its data with the means and standard
+     * deviations of the rows it holds, unless they look standardised
+     * already, while a view standardises objects as the other classifier
+     * does. This classifier must not be built yet, as its standardise flag
+     * is the one the copy would be built with.
+     * @param base The classifier that holds the training data, built on all
+     * the attributes.
+     * @param subsetStatistics The statistics of the rows before they were
+     * standardised, over all the attributes of the base.
+     * @param columns The attributes used in ascending order, null for all of
+     * them.
+     * @return True if the view would classify objects as the copy would.
+     */
+    public boolean canBeViewOf(KNN base, AttributeStatistics subsetStatistics,
+            int[] columns){
+        
+        boolean standardiseSubset = this.standardise 
+                && !isStandardised(subsetStatistics, columns);
+        
+        if (base.queryColumns != null || standardiseSubset != base.standardise){
+            return false;
+        }
+        if (!standardiseSubset){
+            return true;
+        }
+        
+        int numOfColumns = columns == null 
+                ? subsetStatistics.numAttributes() : columns.length;
+        for (int c = 0; c < numOfColumns; c++){
+            int j = columns == null ? c : columns[c];
+            if (subsetStatistics.mean(j) != base.means[j] 
+                    || subsetStatistics.standardDeviation(j) 
+                    != base.standardDeviations[j]){
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks whether this classifier standardises objects exactly as another
+     * classifier does on the attributes this classifier uses, so that it can
+     * search with objects the other classifier standardised.
+     * @param base The other classifier, built on all the attributes of the
+     * training data.
+     * @return True if the attributes this classifier uses are standardised
+     * the same way by both classifiers.
+     */
+    public boolean standardisesLike(KNN base){
+        
+        if (base.queryColumns != null || standardise != base.standardise){
+            return false;
+        }
+        if (!standardise){
+            return true;
+        }
+        
+        for (int c = 0; c < means.length; c++){
+            int j = queryColumns == null ? c : queryColumns[c];
+            if (means[c] != base.means[j] 
+                    || standardDeviations[c] != base.standardDeviations[j]){
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Writes the built classifier to a model file. If the classifier is a
+     * view of a shared feature matrix, only the rows and columns of the view
+     * are written. A classifier that has been updated is written as if its
+     * data had been standardised with the current means and standard
+     * deviations.
+     * @param out The stream of the model file.
+     * @param sharedData The feature matrix written before this classifier,
+     * which it may be a view of, or null.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeModel(ModelFile.ModelOutputStream out, 
+            FeatureMatrix sharedData) throws IOException {
+        
+        double[] writtenMeans = means;
+        double[] writtenSDs = standardDeviations;
+        FeatureMatrix writtenData = trainData;
+        if (statistics != null){
+            writtenMeans = new double[statistics.numAttributes()];
+            writtenSDs = new double[statistics.numAttributes()];
+            for (int j = 0; j < writtenMeans.length; j++){
+                writtenMeans[j] = statistics.mean(j);
+                writtenSDs[j] = statistics.standardDeviation(j);
+            }
+            writtenData = restandardise(writtenMeans, writtenSDs);
+        }
+        
+        out.writeInt(k);
+        out.writeInt(numOfClasses);
+        out.writeBoolean(standardise);
+        out.writeBoolean(setKAuto);
+        out.writeBoolean(weightedScheme);
+        out.writeBoolean(loocvDistanceCache);
+        out.writeBoolean(seeded);
+        out.writeLong(seed);
+        out.writeInt(searchStrategy.ordinal());
+        out.writeInt(hnswM);
+        out.writeInt(hnswEfConstruction);
+        out.writeInt(hnswEfSearch);
+        out.writeInt(lshTables);
+        out.writeInt(lshHashes);
+        out.writeDouble(lshBucketWidth);
+        ModelFile.writeDoubles(out, writtenMeans);
+        ModelFile.writeDoubles(out, writtenSDs);
+        ModelFile.writeInts(out, queryColumns);
+        
+        if (sharedData != null && writtenData.sharesValues(sharedData)){
+            out.writeBoolean(true);
+            ModelFile.writeInts(out, writtenData.getRowIndex());
+            ModelFile.writeInts(out, writtenData.getColumnIndex());
+        } else {
+            out.writeBoolean(false);
+            ModelFile.writeMatrix(out, writtenData);
+        }
+    }
+    
+    /**
+     * Reads a classifier written by writeModel, replacing the settings and
+     * training data of this classifier. K is not searched for again and the
+     * data model stays empty.
+     * @param in The buffer of the model file.
+     * @param sharedData The feature matrix read before this classifier,
+     * which it may be a view of, or null.
+     */
+    public void readModel(ByteBuffer in, FeatureMatrix sharedData){
+        try {
+            readModel(in, sharedData, null);
+        } catch (IOException e){
+            // The matrix is only mapped from a channel
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Reads a classifier written by writeModel, mapping its feature matrix
+     * from the model file instead of copying it onto the heap.
+     * @param in The buffer of the model file, mapped from its start.
+     * @param sharedData The feature matrix read before this classifier, which
+     * it may be a view of, or null.
+     * @param channel The channel of the model file, or null to copy the 
+     * matrix onto the heap.
+     * @throws IOException If the matrix cannot be mapped.
+     */
+    public void readModel(ByteBuffer in, FeatureMatrix sharedData,
+            FileChannel channel) throws IOException {
+        
+        dataModel = null;
+        k = in.getInt();
+        numOfClasses = in.getInt();
+        standardise = in.get() != 0;
+        setKAuto = in.get() != 0;
+        weightedScheme = in.get() != 0;
+        loocvDistanceCache = in.get() != 0;
+        seeded = in.get() != 0;
+        seed = in.getLong();
+        searchStrategy = SearchStrategy.values()[in.getInt()];
+        hnswM = in.getInt();
+        hnswEfConstruction = in.getInt();
+        hnswEfSearch = in.getInt();
+        lshTables = in.getInt();
+        lshHashes = in.getInt();
+        lshBucketWidth = in.getDouble();
+        means = ModelFile.readDoubles(in);
+        standardDeviations = ModelFile.readDoubles(in);
+        queryColumns = ModelFile.readInts(in);
+        resetUpdates();
+        
+        if (in.get() != 0){
+            int[] rows = ModelFile.readInts(in);
+            trainData = sharedData.view(rows, ModelFile.readInts(in));
+        } else if (channel != null){
+            trainData = ModelFile.mapMatrix(in, channel);
+        } else {
+            trainData = ModelFile.readMatrix(in);
+        }
+        // Views used to be written with the statistics of the shared data
+        if (means != null && means.length != trainData.numAttributes()){
+            means = selectColumns(means, trainData.getColumnIndex());
+            standardDeviations = selectColumns(standardDeviations, 
+                    trainData.getColumnIndex());
+        }
+        offHeap = trainData.isOffHeap();
+        neighbourSearch = createNeighbourSearch();
+    }
+    
+    /**
+     * Picks the values of a subset of the attributes of a classifier.
+     * @param values The value of each attribute, or null.
+     * @param columns The subset of the attributes, null for all of them.
+     * @return The values of the subset, or null.
+     */
+    private static double[] selectColumns(double[] values, int[] columns){
+        
+        if (values == null || columns == null){
+            return values;
+        }
+        
+        double[] selected = new double[columns.length];
+        for (int j = 0; j < columns.length; j++){
+            selected[j] = values[columns[j]];
+        }
+        
+        return selected;
+    }
+    
+    /**
+     * Maps a subset of the attributes of a classifier onto the attributes of
+     * the objects it classifies.
+     * @param baseColumns The attributes of the objects the classifier uses,
+     * null for all of them.
+     * @param columns The subset of the classifier's attributes.
+     * @return The attributes of the objects used by the subset.
+     */
+    private static int[] composeColumns(int[] baseColumns, int[] columns){
+        
+        int[] composed = columns.clone();
+        
+        if (baseColumns != null){
+            for (int j = 0; j < columns.length; j++){
+                composed[j] = baseColumns[columns[j]];
+            }
+        }
+        
+        return composed;
+    }
+    
+    /**
+     * Adds a classified instance to the training data without building the
+     * classifier again. The instance is standardised with the means and
+     * standard deviations the classifier was built with and added to the end
+     * of the feature matrix, and the running means and variances of the 
+     * attributes are updated with Welford's algorithm. The distance then 
+     * weights each attribute by its variance at build time over its variance
+     * now, which is the same as standardising all the data with the current
+     * statistics, so an update costs the number of attributes rather than a
+     * pass over the data. With a bounded stream window, once the window is
+     * full the instance replaces the oldest one (sliding) or a random one 
+     * (reservoir, which may also drop the new instance), and the evicted
+     * instance is removed from the statistics. From the first update the 
+     * neighbours are searched linearly, straight over the feature matrix, so
+     * there is no index to add or evict instances from. K is not searched for
+     * again and the data model is left as it was built. Updates must not run
+     * while other threads score objects.
+     * @param instance The classified instance, it is ignored if its class
+     * value is missing.
+     * @throws Exception If the classifier has not been built, is built on a
+     * subset of the attributes or over the training data of another 
+     * classifier, or has its training data off the heap.
+     */
+    @Override
+    public void updateClassifier(Instance instance) throws Exception {
+        
+        if (trainData == null){
+            throw new Exception("The classifier has not been built");
+        }
+        if (queryColumns != null || trainData.getRowIndex() != null){
+            throw new Exception("Cannot update a classifier built on a "
+                    + "subset of the training data");
+        }
+        if (trainData.isOffHeap()){
+            throw new Exception("Cannot update a classifier with its "
+                    + "training data off the heap");
+        }
+        if (instance.classIsMissing()){
+            return;
+        }
+        
+        if (!updated){
+            startUpdates();
+        }
+        numOfSeen++;
+        
+        // Find the instance the new one replaces, if the window is full
+        int slot = -1;
+        if (activeWindow != StreamWindow.UNBOUNDED 
+                && trainData.numInstances() >= windowCapacity){
+            if (activeWindow == StreamWindow.SLIDING){
+                slot = nextSlot;
+                nextSlot = (nextSlot + 1) % windowCapacity;
+            } else {
+                // Reservoir sampling keeps each instance with equal chance
+                long draw = (long)(windowRandom.nextDouble() * numOfSeen);
+                if (draw >= windowCapacity){
+                    return;
+                }
+                slot = (int)draw;
+            }
+        }
+        
+        if (slot >= 0){
+            if (statistics != null){
+                statistics.remove(toAttributeValues(slot));
+            }
+            trainData.set(slot, toQueryVector(instance), 
+                    (int)instance.classValue());
+        } else {
+            trainData.append(toQueryVector(instance), 
+                    (int)instance.classValue());
+        }
+        
+        if (statistics != null){
+            double[] attrValues = new double[trainData.numAttributes()];
+            for (int j = 0; j < attrValues.length; j++){
+                attrValues[j] = instance.value(j);
+            }
+            statistics.add(attrValues);
+            updateAttributeWeights();
+        }
+    }
+    
+    /**
+     * Prepares a built classifier for its first update. If the training data
+     * does not fit the stream window, it is cut down to its last instances
+     * (sliding) or a random sample of them (reservoir). The running 
+     * statistics start from the means and standard deviations the data was
+     * standardised with, or from the instances kept, and the neighbour 
+     * search is replaced by a linear search that weights the attributes.
+     */
+    private void startUpdates(){
+        
+        int numOfInstances = trainData.numInstances();
+        activeWindow = streamWindow;
+        windowCapacity = windowSize;
+        numOfSeen = numOfInstances;
+        nextSlot = 0;
+        windowRandom = seeded ? new Random(seed) : new Random();
+        
+        boolean cut = activeWindow != StreamWindow.UNBOUNDED 
+                && numOfInstances > windowCapacity;
+        if (cut){
+            int[] rows = new int[windowCapacity];
+            if (activeWindow == StreamWindow.SLIDING){
+                for (int i = 0; i < windowCapacity; i++){
+                    rows[i] = numOfInstances - windowCapacity + i;
+                }
+            } else {
+                rows = sampleRows(numOfInstances, windowCapacity);
+            }
+            trainData = trainData.copy(rows);
+            testKLimit(windowCapacity);
+        }
+        
+        if (standardise){
+            if (cut){
+                statistics = new AttributeStatistics(trainData.numAttributes());
+                for (int i = 0; i < trainData.numInstances(); i++){
+                    statistics.add(toAttributeValues(i));
+                }
+            } else {
+                statistics = new AttributeStatistics(numOfInstances, means,
+                        standardDeviations);
+            }
+            attributeWeights = new double[trainData.numAttributes()];
+            updateAttributeWeights();
+        }
+        
+        updated = true;
+        neighbourSearch = createNeighbourSearch();
+    }
+    
+    /**
+     * Draws a uniform random sample of rows without replacement, in 
+     * ascending order.
+     * @param numOfRows The number of rows to draw from.
+     * @param sampleSize The number of rows drawn.
+     * @return The rows drawn.
+     */
+    private int[] sampleRows(int numOfRows, int sampleSize){
+        
+        int[] rows = new int[numOfRows];
+        for (int i = 0; i < numOfRows; i++){
+            rows[i] = i;
+        }
+        
+        // Partial Fisher-Yates shuffle
+        for (int i = 0; i < sampleSize; i++){
+            int j = i + windowRandom.nextInt(numOfRows - i);
+            int temp = rows[i];
+            rows[i] = rows[j];
+            rows[j] = temp;
+        }
+        
+        int[] sample = Arrays.copyOf(rows, sampleSize);
+        Arrays.sort(sample);
+        return sample;
+    }
+    
+    /**
+     * Turns a stored instance back into the attribute values it was
+     * standardised from, or copies them if the data is not standardised.
+     * @param row The index of the instance in the feature matrix.
+     * @return The attribute values of the instance.
+     */
+    public double[] toAttributeValues(int row){
+        
+        double[] attrValues = trainData.row(row);
+        if (!this.standardise){
+            return attrValues;
+        }
+        for (int j = 0; j < attrValues.length; j++){
+            attrValues[j] = attrValues[j] * standardDeviations[j] + means[j];
+        }
+        
+        return attrValues;
+    }
+    
+    /**
+     * Forgets the updates of the classifier, before it is built again.
+     */
+    private void resetUpdates(){
+        statistics = null;
+        attributeWeights = null;
+        updated = false;
+    }
+    
+    /**
+     * Weights each attribute by the variance it was standardised with over
+     * its current variance, so that the stored values are standardised with
+     * the current statistics at distance time.
      */
-    public Instances getDataModel(){
-        return dataModel;
+    private void updateAttributeWeights(){
+        
+        double variance;
+        
+        for (int j = 0; j < attributeWeights.length; j++){
+            variance = statistics.variance(j);
+            attributeWeights[j] = variance > 0 ? standardDeviations[j] 
+                    * standardDeviations[j] / variance : 1.0;
+        }
     }
     
     /**
-     * Builds the classifier by storing the training data.
-     * @param data The classified training data
-     * @throws Exception 
+     * Standardises the stored values again with new means and standard 
+     * deviations, into a new feature matrix.
+     * @param newMeans The new mean of each attribute.
+     * @param newSDs The new standard deviation of each attribute.
+     * @return The feature matrix of the values standardised with the new
+     * statistics.
      */
-    @Override
-    public void buildClassifier(Instances data) throws Exception {
-        dataModel = data;
-        votes = new double[dataModel.numClasses()];
-        votesDiscrete = new int[dataModel.numClasses()];
+    private FeatureMatrix restandardise(double[] newMeans, double[] newSDs){
         
-        // Delete instances with no class value
-        dataModel.deleteWithMissingClass();
+        int numOfInstances = trainData.numInstances();
+        int numOfAttr = trainData.numAttributes();
+        double[] newValues = new double[numOfInstances * numOfAttr];
+        int[] labels = new int[numOfInstances];
+        double[] attrValues;
         
-        // Deleting attributes that are not supported (not numeric)
-        for (int i = dataModel.numAttributes() - 2; i >= 0; i--){
-            if (!getCapabilities().test(dataModel.attribute(i))){
-                dataModel.deleteAttributeAt(i);
+        for (int i = 0; i < numOfInstances; i++){
+            labels[i] = trainData.label(i);
+            attrValues = toAttributeValues(i);
+            for (int j = 0; j < numOfAttr; j++){
+                newValues[i * numOfAttr + j] = (attrValues[j] - newMeans[j]) 
+                        / newSDs[j];
             }
         }
-
-        // Set K to highest value if K is larger than number of data model
-        testKLimit();
-     
-        // Standardise attributes if flag is set
-        if (standardise){   
-            standardiseDataModelAttr();
-        }
-        // Set K through LOOCV
-        if (setKAuto){
-            setKWithLOOCV();
-        }
         
+        return new FeatureMatrix(newValues, labels, numOfAttr);
     }
     
     /**
@@ -241,52 +1120,41 @@ public class KNN extends AbstractClassifier {
      */
     @Override
     public double classifyInstance(Instance object){
+        return (double)score(object).getClassIndex();
+    }
+    
+    /**
+     * Scores an object by letting its nearest neighbours vote. The votes are
+     * kept in the returned result rather than in the classifier, so a built
+     * classifier can score objects from several threads at once.
+     * @param object The object that is to be classified.
+     * @return The votes of each class and the winning class.
+     */
+    public VoteResult score(Instance object){
         
-        Instance clonedObject = new DenseInstance(object.numAttributes());
-        double closestMatch, eDistance = 0.0;
-        Instance[] closestInstances = new Instance[k];
-        Instances clonedData = new Instances(dataModel);
-        int closestInstanceIndex = 0, classIndex = 0;
-        double numOfVotes = 0.0;
-        resetVotes();   // Reset votes from previous classification
-
-        // Create a clone of object intance to avoid re-standardising
-        for (int i = 0; i < object.numAttributes(); i++){
-            clonedObject.setValue(i, object.value(i));
-        }
+        double[] clonedObject = toQueryVector(object);
+        Random rand = queryRandom(clonedObject);
         
-        // Standardise Object
-        if (this.standardise){   
-            standardiseObject(clonedObject);
-        }
-
-//        System.out.println("Object to be classified: " + clonedObject);
+        return vote(findNeighbours(clonedObject, rand), rand);
+    }
+    
+    /**
+     * Lets the nearest neighbours of an object vote for its class.
+     * @param neighbours The nearest neighbours of the object, which are rows
+     * of the feature matrix of this classifier.
+     * @param rand The random number generator for settling ties, or null.
+     * @return The votes of each class and the winning class.
+     */
+    public VoteResult vote(NeighbourQueue neighbours, Random rand){
         
-        // Go through all training data K times and choose smallest distance
-        for (int i = 0; i < closestInstances.length; i++){
-            
-            closestMatch = Double.MAX_VALUE;
-            
-            for (int j = 0; j < clonedData.numInstances(); j++){
-                
-                eDistance = distance(clonedData.instance(j), clonedObject);
-                // If distances are same choose randomly
-                if (eDistance == closestMatch){
-                    if (Math.random() < 0.5){
-                        closestInstances[i] = clonedData.instance(j);
-                        closestInstanceIndex = j;
-                    }
-                } else if (eDistance < closestMatch){
-                    closestMatch = eDistance;
-                    closestInstances[i] = clonedData.instance(j);
-                    closestInstanceIndex = j;
-                }
-
-            }
-            clonedData.delete(closestInstanceIndex);
-            classIndex = (int)(closestInstances[i].classValue());
+        double[] votes = new double[numOfClasses];
+        int[] votesDiscrete = new int[numOfClasses];
+        int classIndex = 0;
+        
+        for (int i = 0; i < neighbours.size(); i++){
+            classIndex = trainData.label(neighbours.index(i));
             if(weightedScheme){
-                votes[classIndex] += 1 / (1 + closestMatch);
+                votes[classIndex] += 1 / (1 + neighbours.distance(i));
                 votesDiscrete[classIndex]++;
             } else {
                 votes[classIndex]++;
@@ -295,21 +1163,187 @@ public class KNN extends AbstractClassifier {
         }
         
         // Count the votes
-        classIndex = 0;
-        for (int i = 0; i < votes.length; i++){
-            // If distances are same choose randomly
-            if (numOfVotes == votes[i]){
-                if (Math.random() < 0.5){
-                    numOfVotes = votes[i];
-                    classIndex = i;
+        return new VoteResult(votes, votesDiscrete, countVotes(votes, rand), 
+                neighbours.capacity());
+    }
+    
+    /**
+     * Classifies every instance of a dataset in one call.
+     * @param data The objects that are to be classified.
+     * @return The class index of each object.
+     */
+    public double[] classifyBatch(Instances data){
+        
+        VoteResult[] results = scoreBatch(data);
+        double[] classIndices = new double[results.length];
+        
+        for (int i = 0; i < results.length; i++){
+            classIndices[i] = results[i].getClassIndex();
+        }
+        
+        return classIndices;
+    }
+    
+    /**
+     * Calculates the class distributions of every instance of a dataset in
+     * one call.
+     * @param data The objects that are to be classified.
+     * @return An array of distributions for each class, for each object.
+     */
+    public double[][] distributionsForBatch(Instances data){
+        
+        VoteResult[] results = scoreBatch(data);
+        double[][] distributions = new double[results.length][];
+        
+        for (int i = 0; i < results.length; i++){
+            distributions[i] = results[i].getDistribution();
+        }
+        
+        return distributions;
+    }
+    
+    /**
+     * Scores every instance of a dataset. With the linear search strategy,
+     * the objects are taken in tiles and the distances of a whole tile of
+     * objects to a tile of training instances are calculated together, so
+     * every training instance is read from memory once per tile of objects
+     * rather than once per object. The expanded distances lose precision
+     * when the norms are large, so a few more than K candidates are kept and
+     * their distances are calculated again exactly. If rounding could have
+     * left out a true neighbour, the object is searched again the usual way,
+     * so the neighbours are the same as with score, apart from how ties
+     * between equal distances are settled. Other strategies, and data with
+     * few attributes, or a classifier that has been updated, score one object
+     * at a time.
+     * @param data The objects that are to be classified.
+     * @return The votes of each class and the winning class, for each object.
+     */
+    public VoteResult[] scoreBatch(Instances data){
+        
+        int numOfObjects = data.numInstances();
+        VoteResult[] results = new VoteResult[numOfObjects];
+        
+        if (!(neighbourSearch instanceof LinearSearch) || updated
+                || trainData.numAttributes() < BATCH_MIN_ATTRIBUTES){
+            for (int i = 0; i < numOfObjects; i++){
+                results[i] = score(data.get(i));
+            }
+            return results;
+        }
+        
+        int numOfAttr = trainData.numAttributes();
+        int numOfRows = trainData.numInstances();
+        double[][] objects = new double[BATCH_OBJECTS][];
+        double[] tileObjects = new double[BATCH_OBJECTS * numOfAttr];
+        double[] tileNorms = new double[BATCH_OBJECTS];
+        double[] tileDistances = new double[BATCH_OBJECTS * BATCH_ROWS];
+        Random[] rands = new Random[BATCH_OBJECTS];
+        NeighbourQueue[] neighbours = new NeighbourQueue[BATCH_OBJECTS];
+        int numOfCandidates = Math.min(numOfRows, k + BATCH_EXTRA_CANDIDATES);
+        // Ties between candidates do not use up the objects' generators
+        Random candidateRand = seeded ? new Random(seed) : null;
+        
+        for (int from = 0; from < numOfObjects; from += BATCH_OBJECTS){
+            
+            int tileSize = Math.min(BATCH_OBJECTS, numOfObjects - from);
+            for (int q = 0; q < tileSize; q++){
+                objects[q] = toQueryVector(data.get(from + q));
+                System.arraycopy(objects[q], 0, tileObjects, q * numOfAttr,
+                        numOfAttr);
+                tileNorms[q] = trainData.getKernel().dotProduct(objects[q], 0,
+                        objects[q], 0, numOfAttr);
+                rands[q] = queryRandom(objects[q]);
+                neighbours[q] = new NeighbourQueue(numOfCandidates, 
+                        candidateRand);
+            }
+            
+            // Go through the training data one tile at a time
+            for (int row = 0; row < numOfRows; row += BATCH_ROWS){
+                int toRow = Math.min(row + BATCH_ROWS, numOfRows);
+                trainData.distanceTile(tileObjects, tileNorms, tileSize, row,
+                        toRow, tileDistances);
+                for (int q = 0; q < tileSize; q++){
+                    int offset = q * (toRow - row) - row;
+                    for (int r = row; r < toRow; r++){
+                        neighbours[q].offer(tileDistances[offset + r], r);
+                    }
                 }
-            } else if (numOfVotes < votes[i]){
-                numOfVotes = votes[i];
-                classIndex = i;
+            }
+            
+            for (int q = 0; q < tileSize; q++){
+                // Replace the expanded distances with exact ones, offering
+                // the candidates in the order a linear scan would
+                int[] candidates = new int[neighbours[q].size()];
+                for (int i = 0; i < candidates.length; i++){
+                    candidates[i] = neighbours[q].index(i);
+                }
+                Arrays.sort(candidates);
+                NeighbourQueue exact = new NeighbourQueue(k, rands[q]);
+                for (int candidate : candidates){
+                    exact.offer(trainData.distance(candidate, objects[q]),
+                            candidate);
+                }
+                exact.countDistances(numOfRows + candidates.length);
+                
+                // Instances left out are at least this close, give or take
+                // the rounding error of the expansion
+                double roundingError = 2 * (numOfAttr + 4) * ROUNDING_ERROR 
+                        * (tileNorms[q] + trainData.maxSquaredNorm());
+                if (numOfCandidates < numOfRows && exact.bound() 
+                        > neighbours[q].bound() - roundingError){
+                    exact = findNeighbours(objects[q], rands[q]);
+                } else {
+                    exact.sort();
+                }
+                results[from + q] = vote(exact, rands[q]);
             }
         }
         
-        return (double)classIndex;
+        return results;
+    }
+    
+    /**
+     * Finds the K nearest neighbours of an object with the selected search
+     * strategy. The queue also holds the number of distances calculated by
+     * the search, which shows how much the strategy prunes.
+     * @param object The object whose neighbours are searched for.
+     * @return The neighbours in ascending order of distance.
+     */
+    public NeighbourQueue findNeighbours(Instance object){
+        double[] clonedObject = toQueryVector(object);
+        return findNeighbours(clonedObject, queryRandom(clonedObject));
+    }
+    
+    /**
+     * Finds the K nearest neighbours of a query vector.
+     * @param query The (standardised) attribute values of the object.
+     * @param rand The random number generator for settling ties, or null.
+     * @return The neighbours in ascending order of distance.
+     */
+    private NeighbourQueue findNeighbours(double[] query, Random rand){
+        
+        NeighbourQueue neighbours = new NeighbourQueue(k, rand);
+
+//        System.out.println("Object to be classified: " + query);
+        
+        // Search the training data and keep the K smallest distances
+        neighbourSearch.search(query, neighbours);
+        neighbours.sort();
+        
+        return neighbours;
+    }
+    
+    /**
+     * Creates the random number generator that settles the ties of a query.
+     * If the classifier is seeded, the generator only depends on the seed and
+     * the query, so scoring the same object always gives the same result,
+     * whichever thread scores it.
+     * @param query The (standardised) attribute values of the object.
+     * @return The random number generator, null if the classifier is not
+     * seeded.
+     */
+    public Random queryRandom(double[] query){
+        return seeded ? new Random(seed ^ Arrays.hashCode(query)) : null;
     }
     
     /**
@@ -318,56 +1352,106 @@ public class KNN extends AbstractClassifier {
      * @return The index of wrongly classified instances.
      */
     public int[] crossValidateTest(){
+        return crossValidateTest(null);
+    }
+    
+    /**
+     * Tests the model with 10-fold cross validation, running the folds on an
+     * executor. A fold is a range of rows of the feature matrix, and it is
+     * classified by the rest of the rows, so no data is copied. The results 
+     * are put together in fold order, so they are the same as when the folds
+     * run one after another.
+     * @param executor The executor the folds run on, null to run them on the
+     * calling thread.
+     * @return The index of wrongly classified instances.
+     */
+    public int[] crossValidateTest(ExecutorService executor){
         
-        ArrayList<Integer> wrongClassification = new ArrayList<Integer>();
-        Instances testFold = null;
-        Instances trainFold = null;
-        int foldSize = dataModel.numInstances()/10;
-        int[] foldIndex = new int[2];
+        int numOfInstances = trainData.numInstances();
+        int foldSize = numOfInstances/10;
+        int[][] foldWrong = new int[10][];
+        List<Future<int[]>> folds = new ArrayList<Future<int[]>>();
+        
+        try{
+            for (int fold = 0; fold < 10; fold++){
+                final int from = fold * foldSize;
+                // If last fold get whatever left
+                final int to = (fold == 9) ? numOfInstances : from + foldSize;
+                if (executor == null){
+                    foldWrong[fold] = crossValidateFold(from, to);
+                } else {
+                    folds.add(executor.submit(new Callable<int[]>(){
+                        @Override
+                        public int[] call(){
+                            return crossValidateFold(from, to);
+                        }
+                    }));
+                }
+            }
+            for (int fold = 0; fold < folds.size(); fold++){
+                foldWrong[fold] = folds.get(fold).get();
+            }
+        }catch (Exception e){
+            System.out.println("There was an issue in Cross Validation\n"+
+                    e);
+        }
         
+        // Merge the folds in order
+        int[] wrongClassification = new int[numOfInstances];
+        int numOfWrong = 0;
         for (int fold = 0; fold < 10; fold++){
-            Instances clonedDataModel = new Instances(dataModel);
-            
-            foldIndex[0] = fold * foldSize;
-            // If last fold get whatever left
-            if (fold == 9){
-                foldIndex[1] = dataModel.numInstances() - 1;
-            } else {
-                foldIndex[1] = foldIndex[0] + (foldSize-1);
+            if (foldWrong[fold] != null){
+                System.arraycopy(foldWrong[fold], 0, wrongClassification, 
+                        numOfWrong, foldWrong[fold].length);
+                numOfWrong += foldWrong[fold].length;
             }
+        }
+        
+        return Arrays.copyOf(wrongClassification, numOfWrong);
+    }
+    
+    /**
+     * Tests one fold of the 10-fold cross validation. Every row of the fold
+     * is classified by its nearest neighbour among the rows outside the
+     * fold, as a new KNN with the default K would. The rows of the fold are
+     * skipped in place rather than copied.
+     * @param from The first row of the fold.
+     * @param to The row after the last row of the fold.
+     * @return The index of wrongly classified rows of the fold, in ascending
+     * order.
+     */
+    private int[] crossValidateFold(int from, int to){
+        
+        int numOfInstances = trainData.numInstances();
+        int numOfTrain = numOfInstances - (to - from);
+        int[] wrongClassification = new int[to - from];
+        int numOfWrong = 0;
+        
+        for (int i = from; i < to; i++){
             
-            testFold = getTestFold(foldIndex);
+            double[] test = trainData.row(i);
+            Random rand = queryRandom(test);
+            NeighbourQueue neighbours = new NeighbourQueue(
+                    Math.min(CROSS_VALIDATION_K, numOfTrain), rand);
             
-            if (fold == 9){
-                // Consider that test fold will be removed from training
-                foldIndex[1] = dataModel.numInstances() - (foldSize+1);
-            }
-            trainFold = getTrainFold(foldIndex, clonedDataModel);
-            try{
-                
-                KNN tempKNN = new KNN();
-                tempKNN.buildClassifier(trainFold);
-                
-                for (int i = 0; i < testFold.numInstances(); i++){
-                    if(tempKNN.classifyInstance(testFold.get(i)) !=
-                            testFold.get(i).classValue()){
-                        wrongClassification.add((fold*foldSize)+i);
-                    }
+            for (int j = 0; j < numOfInstances; j++){
+                if (j >= from && j < to){
+                    continue;
                 }
-                
-            }catch (Exception e){
-                System.out.println("There was an issue in Cross Validation\n"+
-                        e);
+                neighbours.offer(trainData.distance(j, test, 
+                        neighbours.bound()), j);
             }
             
-        }
-        // Convert ArrayList to int[]
-        int[] wrongClassificationArr = new int[wrongClassification.size()];
-        for (int i = 0; i < wrongClassificationArr.length; i++) {
-            wrongClassificationArr[i] = wrongClassification.get(i);
+            double[] foldVotes = new double[numOfClasses];
+            for (int j = 0; j < neighbours.size(); j++){
+                foldVotes[trainData.label(neighbours.index(j))]++;
+            }
+            if (countVotes(foldVotes, rand) != trainData.label(i)){
+                wrongClassification[numOfWrong++] = i;
+            }
         }
         
-        return wrongClassificationArr;
+        return Arrays.copyOf(wrongClassification, numOfWrong);
     }
     
     /**
@@ -377,108 +1461,185 @@ public class KNN extends AbstractClassifier {
      */
     @Override
     public double[] distributionForInstance(Instance object){
-        
-        double[] results = new double[dataModel.numClasses()];
-        
-        classifyInstance(object);
-        
-        for (int i = 0; i < results.length; i++){
-            results[i] = (double)votesDiscrete[i]/(double)k;
+        return score(object).getDistribution();
+    }
+    
+    /**
+     * Compiles the data model into the feature matrix and builds the
+     * neighbour search over it. Data off the heap is compiled straight into
+     * direct buffers, and the data model then only keeps its header, so the
+     * classifier holds no copy of the values on the heap.
+     */
+    private void compileDataModel(){
+        if (offHeap){
+            trainData = FeatureMatrix.compileOffHeap(dataModel);
+            dataModel = new Instances(dataModel, 0);
+        } else {
+            trainData = new FeatureMatrix(dataModel);
         }
-        
-        return results;
+        neighbourSearch = createNeighbourSearch();
     }
     
     /**
-     * Function that gets the test fold of data.
-     * @param index The starting and ending index of the test fold.
-     * @return The instances of the test data fold.
+     * Lets go of the training data, which for data off the heap lets its
+     * buffers be freed once they are garbage collected. The classifier has to
+     * be built or read again before it is used.
      */
-    private Instances getTestFold(int[] index){
-        
-        Instances dataFold = new Instances(dataModel, 0);
-        
-        for (int i = index[0]; i <= index[1]; i++){
-            dataFold.add(dataModel.get(i));
+    @Override
+    public void close(){
+        if (trainData != null){
+            trainData.close();
         }
-        
-        return dataFold;
+        trainData = null;
+        neighbourSearch = null;
     }
     
     /**
-     * Function that gets the training fold of data.
-     * @param index The starting and ending index of the training fold.
-     * @param allData The entire data model.
-     * @return The instances of the training data fold.
+     * Creates the neighbour search for the selected strategy. Falls back to
+     * the linear search if the strategy does not suit the training data, or
+     * once the classifier has been updated. The trees also fall back if the
+     * data is too small for them or they do not prune enough of it.
+     * @return The neighbour search over the feature matrix.
      */
-    private Instances getTrainFold(int[] index, Instances allData){
-        for (int i = index[0]; i <= index[1]; i++){
-            allData.remove(i);
+    private NeighbourSearch createNeighbourSearch(){
+        // The indices are not kept up to date with updates
+        if (updated){
+            return new LinearSearch(trainData, attributeWeights);
+        }
+        switch (searchStrategy){
+            case KD_TREE:
+                if (KDTree.isSuitable(trainData) 
+                        && trainData.numInstances() >= TREE_MIN_INSTANCES){
+                    return linearUnlessPruned(new KDTree(trainData));
+                }
+                return createLinearSearch();
+            case BALL_TREE:
+                if (trainData.numInstances() >= TREE_MIN_INSTANCES){
+                    return linearUnlessPruned(new BallTree(trainData));
+                }
+                return createLinearSearch();
+            case HNSW:
+                return new HnswIndex(trainData, hnswM, hnswEfConstruction,
+                        hnswEfSearch, seed);
+            case LSH:
+                return new LshIndex(trainData, lshTables, lshHashes,
+                        lshBucketWidth, seed);
+            default:
+                return createLinearSearch();
         }
-        return allData;
     }
     
     /**
-     * This function calculates the Euclidean distance between the attributes of
-     * a classified and an unclassified object and returns that value.
-     * @param data The classified training instance.
-     * @param object The unclassified instance.
-     * @return The Euclidean distance in a double format.
+     * Tries a tree on a sample of the training instances, and falls back to
+     * the linear search if it calculates more than a share of the distances
+     * for them. The linear search calculates its distances faster than a 
+     * tree does, so a tree that only prunes a little is slower. How much a 
+     * tree prunes depends on how the data is spread, not just on the number
+     * of attributes.
+     * @param tree The tree built over the feature matrix.
+     * @return The tree, or the linear search if the tree does not pay off.
      */
-    private double distance(Instance data, Instance object){
+    private NeighbourSearch linearUnlessPruned(NeighbourSearch tree){
         
-        int numOfAttr = data.numAttributes() - 1;
-        double difference = 0.0, diffSqr = 0.0, total = 0.0;
+        int numOfInstances = trainData.numInstances();
+        int numOfQueries = Math.min(TREE_SAMPLE_QUERIES, numOfInstances);
+        // A training instance is its own nearest neighbour, so one more
+        NeighbourQueue neighbours = new NeighbourQueue(
+                Math.min(numOfInstances, Math.max(1, k) + 1), new Random(0));
+        long numOfDistances = 0;
         
-        for (int i = 0; i < numOfAttr; i++){
-            
-//            System.out.println("Classified: " + data.value(i) + "\nObject: "
-//             + object.value(i));
-            difference = object.value(i) - data.value(i);
-            diffSqr = Math.pow(difference, 2);
-            total += diffSqr;
-            
+        for (int i = 0; i < numOfQueries; i++){
+            neighbours.clear();
+            tree.search(trainData.row(
+                    (int)((long)i * numOfInstances / numOfQueries)), 
+                    neighbours);
+            numOfDistances += neighbours.getDistanceCount();
         }
-//        System.out.println("Distance: " + total + "\n");
-        
-        return total;
         
+        if (numOfDistances > TREE_MAX_DISTANCE_SHARE * numOfInstances 
+                * numOfQueries){
+            return createLinearSearch();
+        }
+        return tree;
+    }
+    
+    /**
+     * Creates the linear search over the selected feature storage.
+     * @return The linear search over the feature matrix.
+     */
+    private NeighbourSearch createLinearSearch(){
+        if (featureStorage == FeatureStorage.DOUBLE 
+                || trainData.numInstances() == 0){
+            return new LinearSearch(trainData);
+        }
+        return new CompactSearch(trainData, featureStorage);
     }
     
     /**
-     * Resets votes from previous classifications to avoid conflicts.
+     * Finds the class with the most votes, ties are settled randomly.
+     * @param classVotes The votes for each class.
+     * @param rand The random number generator for settling ties, null to use
+     * Math.random().
+     * @return The index of the class with the most votes.
      */
-    private void resetVotes(){
+    private static int countVotes(double[] classVotes, Random rand){
+        
+        int classIndex = 0;
+        double numOfVotes = 0.0;
         
-        for (int i = 0; i < votes.length; i++){
-            votes[i] = 0.0;
-            votesDiscrete[i] = 0;
+        for (int i = 0; i < classVotes.length; i++){
+            // If distances are same choose randomly
+            if (numOfVotes == classVotes[i]){
+                if (nextRandom(rand) < 0.5){
+                    numOfVotes = classVotes[i];
+                    classIndex = i;
+                }
+            } else if (numOfVotes < classVotes[i]){
+                numOfVotes = classVotes[i];
+                classIndex = i;
+            }
         }
         
+        return classIndex;
+    }
+    
+    /**
+     * Draws a random number between 0.0 and 1.0.
+     * @param rand The random number generator, null to use Math.random().
+     * @return The random number.
+     */
+    private static double nextRandom(Random rand){
+        return rand == null ? Math.random() : rand.nextDouble();
     }
     
     /**
      * Checks whether K is larger than the number of data model instances
      * and if it is, K is set to the highest value possible which is the 
      * number of data model instances.
+     * @param numOfInstances The number of training instances.
      */
-    private void testKLimit(){
-        if (this.k > dataModel.numInstances()){
+    private void testKLimit(int numOfInstances){
+        if (this.k > numOfInstances){
             System.out.println("K was: " + this.k);
-            this.k = dataModel.numInstances();
+            this.k = numOfInstances;
         }
 //        System.out.println("K is: " + this.k);
     }
     
     /**
      * This functions standardises the attributes of the data model which makes
-     * the mean of data to be 0 and standard deviation to 1.
+     * the mean of data to be 0 and standard deviation to 1. The means and
+     * standard deviations come from a single pass over the data model, split
+     * between the threads like LOOCV.
      */
     private void standardiseDataModelAttr(){
         
+        AttributeStatistics dataStatistics = 
+                AttributeStatistics.of(dataModel, parallelism);
+        
         // If data is already standardised, don't standardise and set the flag
         // to false
-        if(isStandardised()){
+        if(isStandardised(dataStatistics, null)){
 //            System.out.println("Data is already standardised");
             this.standardise = false;
             return;
@@ -486,8 +1647,12 @@ public class KNN extends AbstractClassifier {
         
         // Ignoring the class attribute
         int numberOfAttributes = dataModel.numAttributes() - 1;
-        this.means = calculateDataModelMean();
-        this.standardDeviations =  calculateDataModelSD(this.means);
+        this.means = new double[numberOfAttributes];
+        this.standardDeviations = new double[numberOfAttributes];
+        for (int j = 0; j < numberOfAttributes; j++){
+            this.means[j] = dataStatistics.mean(j);
+            this.standardDeviations[j] = dataStatistics.standardDeviation(j);
+        }
         double standardisedAttr;
         
         for (int i = 0; i < dataModel.numInstances(); i++){
@@ -501,22 +1666,28 @@ public class KNN extends AbstractClassifier {
     
     /**
      * Checks whether training data is already standardised or not.
+     * @param dataStatistics The statistics of the attributes of the data
+     * model.
+     * @param columns The attributes checked, null for all of them.
      * @return True if means and SDs of attributes are zero and 1,
      * false otherwise.
      */
-    private boolean isStandardised(){
+    private boolean isStandardised(AttributeStatistics dataStatistics, 
+            int[] columns){
         
-        double[] tempMeans = calculateDataModelMean();
-        double[] tempSDs = calculateDataModelSD(tempMeans);
+        int numOfColumns = columns == null 
+                ? dataStatistics.numAttributes() : columns.length;
         
-        for (int i = 0; i < tempMeans.length; i++){
-            if ((int)tempMeans[i] == 0){
+        for (int c = 0; c < numOfColumns; c++){
+            int i = columns == null ? c : columns[c];
+            if ((int)dataStatistics.mean(i) == 0){
                 return true;
             }
         }
         
-        for (int i = 0; i < tempSDs.length; i++){
-            if (tempSDs[i] == 1){
+        for (int c = 0; c < numOfColumns; c++){
+            int i = columns == null ? c : columns[c];
+            if (dataStatistics.standardDeviation(i) == 1){
                 return true;
             }
         }
@@ -525,96 +1696,64 @@ public class KNN extends AbstractClassifier {
     }
    
     /**
-     * Standardises the object that has been passed to be classified.
+     * Copies the attribute values of the object that has been passed to be
+     * classified and standardises them if the flag is set. The object itself
+     * is left untouched. A classifier built on a subset of the attributes
+     * only copies those attributes.
      * @param object Object to be classified.
+     * @return The (standardised) attribute values of the object.
      */
-    private void standardiseObject(Instance object){
+    public double[] toQueryVector(Instance object){
         
         // Ignoring the class attribute
-        int numberOfAttributes = dataModel.numAttributes() - 1;
-        double standardisedAttr;
+        int numberOfAttributes = trainData.numAttributes();
+        double[] queryVector = new double[numberOfAttributes];
+        int attr;
         
         for (int j = 0; j < numberOfAttributes; j++){
-            standardisedAttr = (object.value(j) - this.means[j])
-                    / this.standardDeviations[j];
-            object.setValue(j, standardisedAttr);
-        }
-    }
-    
-    /**
-     * Calculates the mean of attributes for the data model.
-     */
-    private double[] calculateDataModelMean(){
-        
-        // Ignoring the class attribute
-        int numberOfAttributes = dataModel.numAttributes() - 1;
-        double[] tempMeans = new double[numberOfAttributes];
-        
-        for (int i = 0; i < dataModel.numInstances(); i++){
-            for (int j = 0; j < numberOfAttributes; j++){    
-                tempMeans[j] += dataModel.get(i).value(j);
+            attr = queryColumns == null ? j : queryColumns[j];
+            if (this.standardise){
+                queryVector[j] = (object.value(attr) - this.means[j])
+                        / this.standardDeviations[j];
+            } else {
+                queryVector[j] = object.value(attr);
             }
         }
         
-        for (int j = 0; j < numberOfAttributes; j++){    
-            tempMeans[j] /= dataModel.numInstances();
-        }
-        
-        return tempMeans;
+        return queryVector;
     }
     
     /**
-     * Calculates the standard deviation of attributes for the data model.
-     * @param means An array of means for each attribute.
-     */
-    private double[] calculateDataModelSD(double[] means){
-        
-        // Ignoring the class attribute
-        int numberOfAttributes = dataModel.numAttributes() - 1;
-        double distanceFromMean = 0;
-        double[] tempSDs = new double[numberOfAttributes];
-        
-        for (int i = 0; i < dataModel.numInstances(); i++){
-            for (int j = 0; j < numberOfAttributes; j++){
-                distanceFromMean = dataModel.get(i).value(j) - means[j];
-                tempSDs[j] += Math.pow(distanceFromMean, 2);        
-            }
-        }
-        for (int j = 0; j < numberOfAttributes; j++){    
-            tempSDs[j] /= dataModel.numInstances();
-            tempSDs[j] = Math.sqrt(tempSDs[j]);
-        }
-        
-        return tempSDs;
-    }
- 
-    /**
-     * Set K automatically through Leave-One Out Cross Validation. This is done
-     * by storing the original dataset in a temporary variable and manipulating
-     * the current instance of the classifier, and finally setting back the 
-     * current instance to the original dataset.
+     * Set K automatically through Leave-One Out Cross Validation. The sorted
+     * neighbours of each held-out instance are found once, for the largest K
+     * in the range, and the votes for every smaller K are read off the same
+     * list by adding one neighbour at a time. The held-out instances are
+     * split between the threads of a fork/join pool, each counting the
+     * accuracies of its own instances.
      */
     private void setKWithLOOCV(){
         
-        Instance test;
-        Instances train, originalDataModel = new Instances(dataModel);
-        int accuracy = 0, highestAccuracy = 0, highestKIndex = 0;
+        int numOfInstances = trainData.numInstances();
+        int highestAccuracy = 0, highestKIndex = 0;
         // The size of training data is always 1 fewer than original
-        int[] kRange = setKRange(dataModel.numInstances());
+        int[] kRange = setKRange(numOfInstances);
         int[] kAccuracies = new int[kRange.length];
+        double[] distanceCache = null;
+        Random rand = seeded ? new Random(seed) : null;
         
-        // For each instance set it to test and the rest to train
-        for (int i = 0; i<originalDataModel.numInstances(); i++){
-            dataModel = new Instances(originalDataModel);
-            test = dataModel.get(i);
-            dataModel.delete(i);
-            System.out.println("loocv: " + i);
-            // Test the accuracy for every value of K (1-Kmax)
-            for (int j = 0; j < kRange.length; j++){
-                this.k = kRange[j];
-                if (test.classValue() == classifyInstance(test)){
-                    kAccuracies[j]++;
-                }
+        // Calculate every distance once if the matrix is small enough
+        if (loocvDistanceCache && (long)numOfInstances * numOfInstances 
+                <= MAX_CACHED_DISTANCES){
+            distanceCache = calculateDistanceMatrix();
+        }
+        
+        if (kRange.length > 0){
+            LoocvTask task = new LoocvTask(0, numOfInstances, kRange.length,
+                    distanceCache);
+            if (parallelism > 1){
+                kAccuracies = SharedPools.get(parallelism).invoke(task);
+            } else {
+                kAccuracies = task.compute();
             }
         }
         
@@ -622,7 +1761,7 @@ public class KNN extends AbstractClassifier {
         for (int i = 0; i < kAccuracies.length; i++){
 //            System.out.println("K " + (i+1) + ": " + kAccuracies[i]);
             if (kAccuracies[i] == highestAccuracy){
-                if (Math.random() < 0.5){
+                if (nextRandom(rand) < 0.5){
                     highestAccuracy = kAccuracies[i];
                     highestKIndex = i;
                 }
@@ -632,16 +1771,79 @@ public class KNN extends AbstractClassifier {
             }
         }
         
-        // Set data model back to the original dataset
-        dataModel = new Instances(originalDataModel);
-        
-        System.out.println("Best K: " + (highestKIndex + 1));
-        
         // Set K to the highest accuracy
         this.k = (highestKIndex + 1);
 
     }
     
+    /**
+     * Holds out one instance and checks which values of K classify it
+     * correctly from the rest of the training data.
+     * @param i The index of the held-out instance.
+     * @param kAccuracies The number of correct classifications for each K,
+     * which is added to.
+     * @param distanceCache The n by n distance matrix, null to calculate the
+     * distances.
+     */
+    private void testHeldOutInstance(int i, int[] kAccuracies, 
+            double[] distanceCache){
+        
+        int numOfInstances = trainData.numInstances();
+        // Each instance has its own generator so the split does not matter
+        Random rand = seeded ? new Random(seed + 31L * (i + 1)) : null;
+        NeighbourQueue neighbours = new NeighbourQueue(kAccuracies.length, 
+                rand);
+        double[] test = trainData.row(i);
+
+        for (int j = 0; j < numOfInstances; j++){
+            if (j == i){
+                continue;
+            }
+            if (distanceCache != null){
+                neighbours.offer(distanceCache[i * numOfInstances + j], j);
+            } else {
+                neighbours.offer(trainData.distance(j, test, 
+                        neighbours.bound()), j);
+            }
+        }
+        neighbours.sort();
+
+        // Test the accuracy for every value of K (1-Kmax)
+        double[] kVotes = new double[numOfClasses];
+        for (int j = 0; j < neighbours.size(); j++){
+            int classIndex = trainData.label(neighbours.index(j));
+            if (weightedScheme){
+                kVotes[classIndex] += 1 / (1 + neighbours.distance(j));
+            } else {
+                kVotes[classIndex]++;
+            }
+            if (countVotes(kVotes, rand) == trainData.label(i)){
+                kAccuracies[j]++;
+            }
+        }
+    }
+    
+    /**
+     * Calculates the distance between every pair of training instances. Each
+     * pair is only calculated once since the distance is symmetric.
+     * @return The n by n distance matrix in row-major order.
+     */
+    private double[] calculateDistanceMatrix(){
+        
+        int numOfInstances = trainData.numInstances();
+        double[] distanceMatrix = new double[numOfInstances * numOfInstances];
+        
+        for (int i = 0; i < numOfInstances; i++){
+            for (int j = i + 1; j < numOfInstances; j++){
+                double distance = trainData.distance(i, j);
+                distanceMatrix[i * numOfInstances + j] = distance;
+                distanceMatrix[j * numOfInstances + i] = distance;
+            }
+        }
+        
+        return distanceMatrix;
+    }
+    
     /**
      * Sets the range of Ks when automatically setting K through LOOCV.
      * @param trainSize The size of the training data.
@@ -668,4 +1870,64 @@ public class KNN extends AbstractClassifier {
         
     }
     
+    /**
+     * This task tests a range of held-out instances for LOOCV. Large ranges
+     * are split in half and tested in parallel, and the accuracies of the
+     * two halves are added together.
+     */
+    private class LoocvTask extends RecursiveTask<int[]> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int from;
+        private final int to;
+        private final int numOfKs;
+        private final double[] distanceCache;
+        
+        /**
+         * Constructor for a range of held-out instances.
+         * @param from The first held-out instance.
+         * @param to The instance after the last held-out instance.
+         * @param numOfKs The number of values of K tested.
+         * @param distanceCache The n by n distance matrix, or null.
+         */
+        LoocvTask(int from, int to, int numOfKs, double[] distanceCache){
+            this.from = from;
+            this.to = to;
+            this.numOfKs = numOfKs;
+            this.distanceCache = distanceCache;
+        }
+        
+        /**
+         * Tests the held-out instances of the range.
+         * @return The number of correct classifications for each K.
+         */
+        @Override
+        protected int[] compute(){
+            
+            if (to - from <= LOOCV_BATCH_SIZE){
+                int[] kAccuracies = new int[numOfKs];
+                for (int i = from; i < to; i++){
+                    testHeldOutInstance(i, kAccuracies, distanceCache);
+                }
+                return kAccuracies;
+            }
+            
+            int middle = (from + to) >>> 1;
+            LoocvTask left = new LoocvTask(from, middle, numOfKs, 
+                    distanceCache);
+            LoocvTask right = new LoocvTask(middle, to, numOfKs, 
+                    distanceCache);
+            left.fork();
+            int[] kAccuracies = right.compute();
+            int[] leftAccuracies = left.join();
+            for (int j = 0; j < numOfKs; j++){
+                kAccuracies[j] += leftAccuracies[j];
+            }
+            
+            return kAccuracies;
+        }
+        
+    }
+    
 }
@@ -10,16 +10,31 @@
  */
 package uea_ml_coursework;
 
+import weka.core.Attribute;
 import weka.core.Capabilities;
 import weka.core.Debug.Random;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 
 /**
  * 18/04/2019
  * @author Bijan Ghasemi Afshar (100125463)
+ * 
+ * With shared data, the members that resample instances are only views of
+ * the first member while neither of them standardises. Once the data gets
+ * standardised, the second half still copies its rows for every member.
  */
 public class KnnEnsemble{
     
@@ -29,8 +44,19 @@ public class KnnEnsemble{
     private double[] classWeight;
     private KNN[] knnEnsemble;
     private int bestK;
+    private int numOfClasses;
     private int attrSelectionCycle;
-    double[] classifyResults;
+    private int[][] memberColumns;
+    private SharedDistanceSearch sharedSearch;
+    private int[] searchedMembers;
+    private boolean sharedDistances;
+    private boolean sharedData;
+    private double[] remainingPositiveWeight;
+    private double[] remainingNegativeWeight;
+    private ExecutorService executor;
+    private boolean earlyStop;
+    private boolean seeded;
+    private long seed;
     
     /**
      * Constructor for creating the KNN Ensemble.
@@ -39,7 +65,14 @@ public class KnnEnsemble{
         this.knnEnsemble = new KNN[50];
         this.classWeight = new double[50];
         bestK = 0;
+        numOfClasses = 0;
         attrSelectionCycle = 1;
+        executor = null;
+        sharedDistances = false;
+        sharedData = false;
+        earlyStop = false;
+        seeded = false;
+        seed = 0;
     }
     
     /**
@@ -50,7 +83,14 @@ public class KnnEnsemble{
         this.knnEnsemble = new KNN[numOfEnsembles];
         this.classWeight = new double[numOfEnsembles];
         bestK = 0;
+        numOfClasses = 0;
         attrSelectionCycle = 2;
+        executor = null;
+        sharedDistances = false;
+        sharedData = false;
+        earlyStop = false;
+        seeded = false;
+        seed = 0;
     }
     
     /**
@@ -61,6 +101,121 @@ public class KnnEnsemble{
         this.bestK = bestK;
     }
     
+    /**
+     * Accessor for the executor used to build the ensemble. The members of
+     * the first half are built at the same time, and the cross validation
+     * folds of the second half members run at the same time. The executor
+     * is not shut down by the ensemble.
+     * @param executor The executor, null to build the ensemble on the calling
+     * thread.
+     */
+    public void setExecutor(ExecutorService executor){
+        this.executor = executor;
+    }
+    
+    /**
+     * Accessor for the flag of sharedDistances. If set, the members of the
+     * first half are searched together over the feature matrix of the first
+     * member. The squared difference of each attribute is calculated once
+     * per query, and each member adds up the attributes it kept the way its
+     * own search would and settles ties with its own random numbers. A
+     * member that standardises its attributes differently from the first
+     * member is searched on its own, so the flag does not change what the
+     * ensemble predicts.
+     * @param sharedDistances The user flag.
+     */
+    public void setSharedDistances(boolean sharedDistances){
+        this.sharedDistances = sharedDistances;
+    }
+    
+    /**
+     * Accessor for the flag of sharedData. If set, the members share the
+     * training data wherever that gives the same classifier as a copy. The
+     * first member standardises and compiles it, and an attribute resampling
+     * member is a view of a subset of its columns if it would standardise
+     * them the way the first member did. The instance resampling members are
+     * views of lists of its rows if the data is not standardised, since a
+     * member that standardises its rows changes the data the next members
+     * resample. With standardised data the second half therefore still
+     * copies its rows, as the members of the default path do. The other
+     * members copy the data too, so the flag does not change what the
+     * ensemble predicts.
+     * @param sharedData The user flag.
+     */
+    public void setSharedData(boolean sharedData){
+        this.sharedData = sharedData;
+    }
+    
+    /**
+     * Accessor for the flag of earlyStop. If set, classifyInstance stops
+     * asking the members once the class with the most votes can no longer be
+     * overtaken by the weights of the remaining members. The members are then
+     * asked one after another, even if an executor is set.
+     * @param earlyStop The user flag.
+     */
+    public void setEarlyStop(boolean earlyStop){
+        this.earlyStop = earlyStop;
+    }
+    
+    /**
+     * Accessor for the seed. Once seeded, the attribute resampling and the 
+     * ties of every member are settled the same way on every build, so the
+     * parallel build gives the same ensemble as the sequential one.
+     * @param seed The seed of the random number generators.
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+        this.seeded = true;
+    }
+    
+    /**
+     * Accessor for the executor used to build the ensemble.
+     * @return The executor, null if the ensemble is built sequentially.
+     */
+    public ExecutorService getExecutor(){
+        return this.executor;
+    }
+    
+    /**
+     * Accessor for sharedDistances.
+     * @return The boolean value of sharedDistances.
+     */
+    public boolean getSharedDistances(){
+        return this.sharedDistances;
+    }
+    
+    /**
+     * Accessor for sharedData.
+     * @return The boolean value of sharedData.
+     */
+    public boolean getSharedData(){
+        return this.sharedData;
+    }
+    
+    /**
+     * Accessor for earlyStop.
+     * @return The boolean value of earlyStop.
+     */
+    public boolean getEarlyStop(){
+        return this.earlyStop;
+    }
+    
+    /**
+     * Accessor for the seed.
+     * @return The seed of the random number generators.
+     */
+    public long getSeed(){
+        return this.seed;
+    }
+    
+    /**
+     * Accessor for the weights of the members.
+     * @return The weight of each member of the ensemble.
+     */
+    public double[] getClassWeights(){
+        return this.classWeight;
+    }
+    
     /**
      * Builds the ensemble classifier and sets each member of the ensemble.
      * @param data The training dataset.
@@ -69,9 +224,19 @@ public class KnnEnsemble{
         
         // Initializing variables
         dataModel = new Instances(data);
-        Instances clonedDataModel = new Instances(dataModel);
+        // The members drop these as well, and the instance weights must
+        // match the instances they hold
+        dataModel.deleteWithMissingClass();
+        numOfClasses = dataModel.numClasses();
+        Instances clonedDataModel = null;
+        // Whether the resampled data only holds positions in the data model
+        boolean rowIndexed = false;
         this.instanceWeights = new double[dataModel.numInstances()];
+        this.memberColumns = new int[knnEnsemble.length][];
         double weightedError = 0.0;
+        // The first member and the attribute resampling members
+        int firstHalf = Math.min(knnEnsemble.length, 
+                Math.max(1, knnEnsemble.length/2));
         
         // Initialize all instance weights as 1
         resetInstanceWeight();
@@ -79,27 +244,58 @@ public class KnnEnsemble{
         // Populate the ensemble
         try {
         
-            for (int i = 0; i < knnEnsemble.length; i++){
-                // if first run, get the original dataset
-                if (i == 0){
-                    
-                    // if best K value is not set find it automatically
-                    if (this.bestK == 0){
-                        knnEnsemble[i] = new KNN(true, true, true);
-                    } else {
-                        knnEnsemble[i] = new KNN(true, false, true);
+            // The first half only resamples attributes and the instance
+            // weights stay equal, so its members do not depend on each other
+            List<Future<int[]>> firstHalfResults = 
+                    new ArrayList<Future<int[]>>();
+            int[][] firstHalfWrong = new int[firstHalf][];
+            // Shared members are views of the first member, so it is built
+            // first. If it dropped unsupported attributes, the attributes of
+            // the other members no longer line up with its columns.
+            int firstShared = 0;
+            if (sharedData){
+                firstHalfWrong[0] = buildFirstHalfMember(0, 
+                        this.attrSelectionCycle - 1, null);
+                firstShared = 1;
+            }
+            final boolean shared = sharedData 
+                    && knnEnsemble[0].getFeatureMatrix().numAttributes() 
+                    == dataModel.numAttributes() - 1;
+            // The members check whether a view would standardise the data
+            // the way a copy would against the unstandardised statistics
+            final AttributeStatistics dataStatistics = shared 
+                    ? AttributeStatistics.of(dataModel, 
+                            knnEnsemble[0].getParallelism()) : null;
+            for (int i = firstShared; i < firstHalf; i++){
+                final int member = i;
+                final int cycle = this.attrSelectionCycle + i - 1;
+                Callable<int[]> task = new Callable<int[]>(){
+                    @Override
+                    public int[] call() throws Exception {
+                        return buildFirstHalfMember(member, cycle, 
+                                dataStatistics);
                     }
+                };
+                if (executor == null){
+                    firstHalfWrong[i] = task.call();
+                } else {
+                    firstHalfResults.add(executor.submit(task));
+                }
+            }
+            for (int i = 0; i < firstHalfResults.size(); i++){
+                firstHalfWrong[firstShared + i] = 
+                        firstHalfResults.get(i).get();
+            }
+            this.attrSelectionCycle += firstHalf - 1;
+            
+            for (int i = 0; i < knnEnsemble.length; i++){
+                
+                int[] wrongClassifications;
+                
+                // If in the first half run, the member is already built
+                if (i < firstHalf){
                     
-                    knnEnsemble[i].buildClassifier(clonedDataModel);
-                    
-                } 
-                // If in the first half run, resample attributes
-                else if (i < (knnEnsemble.length/2)){
-                    
-                    knnEnsemble[i] = new KNN(true, false, true);
-                    knnEnsemble[i].setK(bestK);
-                    clonedDataModel = resampleAttribute();
-                    knnEnsemble[i].buildClassifier(clonedDataModel);
+                    wrongClassifications = firstHalfWrong[i];
                     
                 } 
                 // If in the second half run, resample instances
@@ -108,16 +304,34 @@ public class KnnEnsemble{
                     // If second half run starts resample from original data
                     // and move on
                     if(i == (knnEnsemble.length/2)){
-                        clonedDataModel = new Instances(dataModel);
+                        clonedDataModel = shared ? createRowIndex() 
+                                : new Instances(dataModel);
+                        rowIndexed = shared;
                     }
                     
                     knnEnsemble[i] = new KNN(true, false, true);
                     knnEnsemble[i].setK(bestK);
-                    knnEnsemble[i].buildClassifier(clonedDataModel);
+                    if (seeded){
+                        knnEnsemble[i].setSeed(seed + i);
+                    }
+                    if (rowIndexed){
+                        Instances rowData = buildRowMember(i, 
+                                toRows(clonedDataModel));
+                        // A member that copied the rows standardised them,
+                        // and the next members resample its data
+                        if (rowData != null){
+                            clonedDataModel = rowData;
+                            rowIndexed = false;
+                        }
+                    } else {
+                        knnEnsemble[i].buildClassifier(clonedDataModel);
+                    }
+                    
+                    // Get the wrong classifications of this classifier 
+                    // through 10-fold cross validation
+                    wrongClassifications = 
+                            knnEnsemble[i].crossValidateTest(executor);
                 }
-                // Get the wrong classifications of this classifier through
-                // 10-fold cross validation
-                int[] wrongClassifications = knnEnsemble[i].crossValidateTest();
                 
                 // Calculate the weighted error
                 weightedError = calculateWeightedError(wrongClassifications);
@@ -133,7 +347,9 @@ public class KnnEnsemble{
                     */
                     classWeight[i] = 2;
                     resetInstanceWeight();
-                    clonedDataModel = new Instances(dataModel);
+                    clonedDataModel = shared ? createRowIndex() 
+                            : new Instances(dataModel);
+                    rowIndexed = shared;
                     
                 } else {
                     
@@ -160,32 +376,415 @@ public class KnnEnsemble{
         } catch (Exception e){
             System.out.println("There was an issue creating ensemble\n" + e);
         }
+        calculateRemainingWeights();
+        createSharedSearch(firstHalf, dataModel.numAttributes() - 1);
         System.out.println("Ensemble is done");
     }
     
+    /**
+     * Writes the built ensemble to a model file: its settings, the weight
+     * and attribute mask of every member and the members themselves. Members
+     * that are views of the first member only write their rows and columns.
+     * @param out The stream of the model file.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeModel(ModelFile.ModelOutputStream out) 
+            throws IOException {
+        
+        out.writeInt(knnEnsemble.length);
+        out.writeInt(bestK);
+        out.writeInt(numOfClasses);
+        out.writeInt(attrSelectionCycle);
+        out.writeBoolean(sharedDistances);
+        out.writeBoolean(sharedData);
+        out.writeBoolean(earlyStop);
+        out.writeBoolean(seeded);
+        out.writeLong(seed);
+        out.writeBoolean(sharedSearch != null);
+        ModelFile.writeDoubles(out, classWeight);
+        for (int[] columns : memberColumns){
+            ModelFile.writeInts(out, columns);
+        }
+        
+        knnEnsemble[0].writeModel(out, null);
+        for (int i = 1; i < knnEnsemble.length; i++){
+            knnEnsemble[i].writeModel(out, 
+                    knnEnsemble[0].getFeatureMatrix());
+        }
+    }
+    
+    /**
+     * Reads an ensemble written by writeModel. The members are not built or
+     * cross validated again.
+     * @param in The buffer of the model file.
+     * @return The ensemble, ready to classify objects.
+     */
+    public static KnnEnsemble readModel(ByteBuffer in){
+        
+        KnnEnsemble ensemble = new KnnEnsemble(in.getInt());
+        ensemble.bestK = in.getInt();
+        ensemble.numOfClasses = in.getInt();
+        ensemble.attrSelectionCycle = in.getInt();
+        ensemble.sharedDistances = in.get() != 0;
+        ensemble.sharedData = in.get() != 0;
+        ensemble.earlyStop = in.get() != 0;
+        ensemble.seeded = in.get() != 0;
+        ensemble.seed = in.getLong();
+        boolean hasSharedSearch = in.get() != 0;
+        ensemble.classWeight = ModelFile.readDoubles(in);
+        ensemble.memberColumns = new int[ensemble.knnEnsemble.length][];
+        for (int i = 0; i < ensemble.memberColumns.length; i++){
+            ensemble.memberColumns[i] = ModelFile.readInts(in);
+        }
+        
+        KNN[] members = ensemble.knnEnsemble;
+        for (int i = 0; i < members.length; i++){
+            members[i] = new KNN();
+            members[i].readModel(in, i == 0 ? null 
+                    : members[0].getFeatureMatrix());
+        }
+        
+        ensemble.calculateRemainingWeights();
+        if (hasSharedSearch){
+            ensemble.createSharedSearch(Math.min(members.length, 
+                    Math.max(1, members.length/2)), 
+                    members[0].getFeatureMatrix().numAttributes());
+        }
+        
+        return ensemble;
+    }
+    
+    /**
+     * Creates the shared search over the members of the first half, which
+     * all hold the same instances in the same order. A member is only
+     * searched together with the others if it standardises its attributes
+     * as the first member does, otherwise it is searched on its own. If the
+     * first member dropped unsupported attributes, its columns no longer
+     * line up with the attributes of the other members and no shared search
+     * is created.
+     * @param firstHalf The number of members in the first half.
+     * @param numOfAttr The number of attributes of the training data,
+     * excluding the class attribute.
+     */
+    private void createSharedSearch(int firstHalf, int numOfAttr){
+        
+        sharedSearch = null;
+        searchedMembers = null;
+        if (knnEnsemble[0] == null || knnEnsemble[0].getFeatureMatrix() 
+                == null || knnEnsemble[0].getFeatureMatrix().numAttributes() 
+                != numOfAttr){
+            return;
+        }
+        
+        int[] members = new int[firstHalf];
+        int numOfMembers = 0;
+        for (int i = 0; i < firstHalf; i++){
+            if (knnEnsemble[i] == null){
+                return;
+            }
+            if (knnEnsemble[i].standardisesLike(knnEnsemble[0])){
+                members[numOfMembers++] = i;
+            }
+        }
+        
+        int[][] columns = new int[numOfMembers][];
+        FeatureMatrix[] memberData = new FeatureMatrix[numOfMembers];
+        int[] ks = new int[numOfMembers];
+        for (int m = 0; m < numOfMembers; m++){
+            columns[m] = memberColumns[members[m]];
+            memberData[m] = knnEnsemble[members[m]].getFeatureMatrix();
+            ks[m] = knnEnsemble[members[m]].getK();
+        }
+        searchedMembers = Arrays.copyOf(members, numOfMembers);
+        sharedSearch = new SharedDistanceSearch(
+                knnEnsemble[0].getFeatureMatrix(), columns, memberData, ks);
+    }
+    
+    /**
+     * Calculates how much the members from each position onwards can add to
+     * or take away from the votes of a class. Positive weights can only add
+     * votes and negative weights can only take them away.
+     */
+    private void calculateRemainingWeights(){
+        
+        remainingPositiveWeight = new double[knnEnsemble.length + 1];
+        remainingNegativeWeight = new double[knnEnsemble.length + 1];
+        
+        for (int i = knnEnsemble.length - 1; i >= 0; i--){
+            remainingPositiveWeight[i] = remainingPositiveWeight[i + 1]
+                    + Math.max(0.0, classWeight[i]);
+            remainingNegativeWeight[i] = remainingNegativeWeight[i + 1]
+                    - Math.min(0.0, classWeight[i]);
+        }
+    }
+    
+    /**
+     * Builds a member of the first half of the ensemble. The first member
+     * uses the original data and the others resample the attributes.
+     * @param i The index of the member.
+     * @param cycle The attribute selection cycle of the member.
+     * @param dataStatistics The statistics of the training data, if the
+     * member may be a view of the first member rather than a copy of the
+     * data, or null.
+     * @return The index of the instances the member got wrong in 10-fold
+     * cross validation.
+     * @throws Exception 
+     */
+    private int[] buildFirstHalfMember(int i, int cycle, 
+            AttributeStatistics dataStatistics) throws Exception {
+        
+        KNN member;
+        
+        // if first run, get the original dataset
+        if (i == 0){
+
+            // if best K value is not set find it automatically
+            if (this.bestK == 0){
+                member = new KNN(true, true, true);
+            } else {
+                member = new KNN(true, false, true);
+            }
+
+        } else {
+
+            member = new KNN(true, false, true);
+            member.setK(bestK);
+            memberColumns[i] = resampleColumns(cycle, seeded 
+                    ? new Random(seed + i) : new Random());
+        }
+        
+        if (seeded){
+            member.setSeed(seed + i);
+        }
+        if (i == 0){
+            member.buildClassifier(new Instances(dataModel));
+        } else if (dataStatistics != null && member.canBeViewOf(
+                knnEnsemble[0], dataStatistics, memberColumns[i])){
+            member.buildClassifier(knnEnsemble[0], null, memberColumns[i]);
+        } else {
+            // The member compares objects on the attributes it kept
+            member.buildClassifier(dataModel, memberColumns[i]);
+        }
+        knnEnsemble[i] = member;
+        
+        // Get the wrong classifications of this classifier through
+        // 10-fold cross validation. The folds run on this thread, since
+        // waiting for the executor from inside it could use up its threads
+        return member.crossValidateTest();
+    }
+    
     /**
      * Classifies an instances.
      * @param object The object that is to be classified.
      * @return The class index of the result.
      */
     public double classifyInstance(Instance object){
+        
+        double[] classifyResults = new double[numOfClasses];
+        int classIndex = collectVotes(object, classifyResults, earlyStop);
+        
+        // Find the class with highest vote
+        return (double)findHighestVote(classifyResults, classIndex, 
+                queryRandom(object));
+    }
+    
+    /**
+     * Classifies every instance of a dataset in one call. Each member
+     * classifies the whole dataset with its batch method, and with an
+     * executor the members run at the same time. The votes are added in
+     * member order, so the result is the same as classifying the instances
+     * one at a time, apart from how ties between neighbours are settled.
+     * @param data The objects that are to be classified.
+     * @return The class index of each object.
+     */
+    public double[] classifyBatch(Instances data){
+        
+        int numOfObjects = data.numInstances();
+        double[][] memberResults = new double[knnEnsemble.length][];
+        double[][] classifyResults = 
+                new double[numOfObjects][numOfClasses];
+        double[] classIndices = new double[numOfObjects];
+        List<Future<double[]>> members = new ArrayList<Future<double[]>>();
+        
+        try{
+            for (int i = 0; i < knnEnsemble.length; i++){
+                final KNN member = knnEnsemble[i];
+                final Instances objects = data;
+                if (executor == null){
+                    memberResults[i] = member.classifyBatch(objects);
+                } else {
+                    members.add(executor.submit(new Callable<double[]>(){
+                        @Override
+                        public double[] call(){
+                            return member.classifyBatch(objects);
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < members.size(); i++){
+                memberResults[i] = members.get(i).get();
+            }
+        } catch (Exception e){
+            System.out.println("There was an issue classifying\n" + e);
+            return classIndices;
+        }
+        
+        for (int j = 0; j < numOfObjects; j++){
+            int classIndex = 0;
+            for (int i = 0; i < knnEnsemble.length; i++){
+                classIndex = (int)memberResults[i][j];
+                classifyResults[j][classIndex] += classWeight[i];
+            }
+            classIndices[j] = findHighestVote(classifyResults[j], classIndex,
+                    queryRandom(data.get(j)));
+        }
+        
+        return classIndices;
+    }
+    
+    /**
+     * Calculates the distribution to which each class was voted for (0.0 - 1.0)
+     * @param object The object that is to be classified.
+     * @return An array of distributions for each class.
+     */
+    public double[] distributionForInstance(Instance object){
+        double[] results = new double[numOfClasses];
+        double[] classifyResults = new double[numOfClasses];
+        
+        collectVotes(object, classifyResults, false);
+        
+        for (int i = 0; i < results.length; i++){
+            results[i] = (double)classifyResults[i]/(double)DoubleStream.of(classifyResults).sum();
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Adds the weighted votes of the members for an object. The votes are
+     * kept by the caller, so the ensemble can classify objects from several
+     * threads at once.
+     * @param object The object that is to be classified.
+     * @param classifyResults The weighted votes of each class, added to.
+     * @param stopEarly Flag to whether stop once the leading class can no
+     * longer be overtaken.
+     * @return The class voted for by the last member asked.
+     */
+    private int collectVotes(Instance object, double[] classifyResults, 
+            boolean stopEarly){
+        
         int classIndex = 0;
-        classifyResults = new double[dataModel.numClasses()];
-        double highestVote = 0;
         
-
+        // Search the first half together
+        NeighbourQueue[] sharedNeighbours = null;
+        java.util.Random[] sharedRands = 
+                new java.util.Random[knnEnsemble.length];
+        if (sharedDistances && sharedSearch != null){
+            // Every member settles ties as it would searching on its own
+            java.util.Random[] rands = 
+                    new java.util.Random[searchedMembers.length];
+            for (int m = 0; m < rands.length; m++){
+                KNN member = knnEnsemble[searchedMembers[m]];
+                rands[m] = member.queryRandom(member.toQueryVector(object));
+                sharedRands[searchedMembers[m]] = rands[m];
+            }
+            NeighbourQueue[] found = sharedSearch.search(
+                    knnEnsemble[0].toQueryVector(object), rands);
+            sharedNeighbours = new NeighbourQueue[knnEnsemble.length];
+            for (int m = 0; m < found.length; m++){
+                sharedNeighbours[searchedMembers[m]] = found[m];
+            }
+        }
+        
+        // Ask the members at the same time unless stopping early
+        if (executor != null && !stopEarly && sharedNeighbours == null){
+            List<Future<Double>> members = new ArrayList<Future<Double>>();
+            for (int i = 0; i < knnEnsemble.length; i++){
+                final KNN member = knnEnsemble[i];
+                final Instance memberObject = object;
+                members.add(executor.submit(new Callable<Double>(){
+                    @Override
+                    public Double call(){
+                        return member.classifyInstance(memberObject);
+                    }
+                }));
+            }
+            try{
+                for (int i = 0; i < knnEnsemble.length; i++){
+                    classIndex = members.get(i).get().intValue();
+                    classifyResults[classIndex] += classWeight[i];
+                }
+            } catch (Exception e){
+                System.out.println("There was an issue classifying\n" + e);
+            }
+            return classIndex;
+        }
+        
         for (int i = 0; i < knnEnsemble.length; i++){
-            classIndex = (int)knnEnsemble[i].classifyInstance(object);
+            if (sharedNeighbours != null && sharedNeighbours[i] != null){
+                classIndex = knnEnsemble[i].vote(sharedNeighbours[i], 
+                        sharedRands[i]).getClassIndex();
+            } else {
+                classIndex = (int)knnEnsemble[i].classifyInstance(object);
+            }
 
             classifyResults[classIndex] += classWeight[i];
+            
+            if (stopEarly && isDecided(classifyResults, i + 1)){
+                break;
+            }
         }
-      
-        // Find the class with highest vote
+        
+        return classIndex;
+    }
+    
+    /**
+     * Checks whether the class with the most votes is certain to win. This is
+     * the case if it still leads after losing all negative weights of the
+     * remaining members while every other class gains all positive weights.
+     * @param classifyResults The weighted votes of each class so far.
+     * @param next The position of the next member to be asked.
+     * @return True if the remaining members cannot change the result.
+     */
+    private boolean isDecided(double[] classifyResults, int next){
+        
+        int leader = 0;
+        double runnerUp = Double.NEGATIVE_INFINITY;
+        
+        for (int i = 1; i < classifyResults.length; i++){
+            if (classifyResults[i] > classifyResults[leader]){
+                runnerUp = classifyResults[leader];
+                leader = i;
+            } else {
+                runnerUp = Math.max(runnerUp, classifyResults[i]);
+            }
+        }
+        
+        double lowestLead = classifyResults[leader] 
+                - remainingNegativeWeight[next];
+        
+        // A leader without positive votes could still lose to a tie at zero
+        return lowestLead > 0 
+                && lowestLead > runnerUp + remainingPositiveWeight[next];
+    }
+    
+    /**
+     * Finds the class with the most votes, ties are settled randomly.
+     * @param classifyResults The weighted votes of each class.
+     * @param classIndex The class chosen if no class has a positive vote.
+     * @param rand The random number generator for settling ties.
+     * @return The class index of the result.
+     */
+    private static int findHighestVote(double[] classifyResults, 
+            int classIndex, java.util.Random rand){
+        
+        double highestVote = 0;
+        
         for (int i = 0; i < classifyResults.length; i++){
             
 
             if (classifyResults[i] == highestVote){
-                if (Math.random() < 0.5){
+                if (rand.nextDouble() < 0.5){
                     highestVote = classifyResults[i];
                     classIndex = i;
                 }
@@ -194,27 +793,24 @@ public class KnnEnsemble{
                 classIndex = i;
             } else {}
         }
-
-        return (double)classIndex;
+        
+        return classIndex;
     }
     
     /**
-     * Calculates the distribution to which each class was voted for (0.0 - 1.0)
+     * Creates the random number generator that settles the ties of an
+     * object. If the ensemble is seeded, it only depends on the seed and the
+     * object.
      * @param object The object that is to be classified.
-     * @return An array of distributions for each class.
+     * @return The random number generator.
      */
-    public double[] distributionForInstance(Instance object){
-        double[] results = new double[dataModel.numClasses()];
-        
-        classifyInstance(object);
-        
-        for (int i = 0; i < results.length; i++){
-            results[i] = (double)classifyResults[i]/(double)DoubleStream.of(classifyResults).sum();
+    private java.util.Random queryRandom(Instance object){
+        if (seeded){
+            return new Random(seed ^ Arrays.hashCode(object.toDoubleArray()));
         }
-        
-        return results;
+        return ThreadLocalRandom.current();
     }
- 
+    
     /**
      * Function to reset the instance weights if the classifier got all 
      * instances right.
@@ -297,18 +893,23 @@ public class KnnEnsemble{
     }
     
     /**
-     * Function for resampling attributes for building KNN Ensemble
-     * @return the instances with resampled attributes
+     * Picks the attributes kept by an attribute resampling member.
+     * @param cycle The attribute selection cycle, which sets the number of
+     * attributes removed.
+     * @param rand The random number generator that picks the attributes.
+     * @return The indices of the kept attributes in ascending order.
      */
-    private Instances resampleAttribute(){
+    private int[] resampleColumns(int cycle, Random rand){
         
-        Instances resampledData = new Instances(dataModel);
-        Random rand = new Random();
+        List<Integer> columns = new ArrayList<Integer>();
         int attrIndexToRemove = 0;
         // Class attribute and total number of attribute need to be ignored
         // since they don't contribute to attribute combination selection
         int numOfAttr = dataModel.numAttributes() - 2;
-        int numOfSelectedAttr = this.attrSelectionCycle % numOfAttr;
+        for (int j = 0; j <= numOfAttr; j++){
+            columns.add(j);
+        }
+        int numOfSelectedAttr = cycle % numOfAttr;
         
         // if cycle of attribute sampling matches number of attributes - 1
         // select random (attributes - 1) attributes
@@ -319,12 +920,85 @@ public class KnnEnsemble{
         // Randomly remove attributes 
         for (int i = 0; i < numOfSelectedAttr; i++){
             attrIndexToRemove = rand.nextInt((numOfAttr + 1));
-            resampledData.deleteAttributeAt(attrIndexToRemove);
+            columns.remove(attrIndexToRemove);
             numOfAttr--;
         }
-        this.attrSelectionCycle++;
         
-        return resampledData;
+        int[] kept = new int[columns.size()];
+        for (int j = 0; j < kept.length; j++){
+            kept[j] = columns.get(j);
+        }
+        
+        return kept;
+    }
+    
+    /**
+     * Builds a member of the second half over resampled rows of the data
+     * model. The member is a view of the first member's feature matrix if
+     * neither of them standardises the data, and a copy of the rows
+     * otherwise. A member that standardises its rows leaves them standardised
+     * for the members that resample them next, so a view would change their
+     * data.
+     * @param i The index of the member, which is not built yet.
+     * @param rows The positions of the resampled rows in order.
+     * @return The rows the member copied, as it left them, or null if the
+     * member is a view.
+     * @throws Exception 
+     */
+    private Instances buildRowMember(int i, int[] rows) throws Exception {
+        
+        AttributeStatistics rowStatistics = AttributeStatistics.of(dataModel, 
+                rows, knnEnsemble[i].getParallelism());
+        
+        if (!knnEnsemble[0].getStandardise() && knnEnsemble[i].canBeViewOf(
+                knnEnsemble[0], rowStatistics, null)){
+            knnEnsemble[i].buildClassifier(knnEnsemble[0], rows, null);
+            return null;
+        }
+        
+        Instances rowData = new Instances(dataModel, rows.length);
+        for (int row : rows){
+            rowData.add(dataModel.get(row));
+        }
+        knnEnsemble[i].buildClassifier(rowData);
+        
+        return rowData;
+    }
+    
+    /**
+     * Creates a dataset that only holds the position of every instance of
+     * the data model. Resampling it with weights picks the same positions as
+     * resampling the data model would, without copying any attributes.
+     * @return The dataset of instance positions in order.
+     */
+    private Instances createRowIndex(){
+        
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        attributes.add(new Attribute("row"));
+        Instances rowIndex = new Instances("rows", attributes, 
+                dataModel.numInstances());
+        
+        for (int i = 0; i < dataModel.numInstances(); i++){
+            rowIndex.add(new DenseInstance(1.0, new double[]{i}));
+        }
+        
+        return rowIndex;
+    }
+    
+    /**
+     * Reads the instance positions of a resampled row index.
+     * @param rowIndex The dataset of instance positions.
+     * @return The positions in order.
+     */
+    private static int[] toRows(Instances rowIndex){
+        
+        int[] rows = new int[rowIndex.numInstances()];
+        
+        for (int i = 0; i < rows.length; i++){
+            rows[i] = (int)rowIndex.get(i).value(0);
+        }
+        
+        return rows;
     }
     
 }
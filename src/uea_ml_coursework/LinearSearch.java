@@ -0,0 +1,61 @@
+/*
+ * This is the exhaustive search strategy of the KNN classifier. It calculates
+ * the distance of the object to every instance of the training data. It reads
+ * the number of instances on every search, so it stays valid while instances
+ * are added to the feature matrix, and it can weight the attributes, which is
+ * how an updateable KNN standardises with its running statistics.
+ */
+package uea_ml_coursework;
+
+public class LinearSearch implements NeighbourSearch {
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final double[] weights;
+
+    /**
+     * Constructor for initialising the linear search.
+     * @param trainData The feature matrix of the training data.
+     */
+    public LinearSearch(FeatureMatrix trainData){
+        this.trainData = trainData;
+        this.weights = null;
+    }
+
+    /**
+     * Constructor for initialising a linear search with weighted attributes.
+     * The weights are read on every search, so they can be changed in place.
+     * @param trainData The feature matrix of the training data.
+     * @param weights The weight of each attribute, null for none.
+     */
+    public LinearSearch(FeatureMatrix trainData, double[] weights){
+        this.trainData = trainData;
+        this.weights = weights;
+    }
+
+
+    /**
+     * Goes through all training data once and keeps the K smallest distances.
+     * Once the queue is full, a distance calculation is abandoned as soon as
+     * it is further than the K-th neighbour.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+        int numOfInstances = trainData.numInstances();
+        if (weights != null){
+            for (int j = 0; j < numOfInstances; j++){
+                neighbours.offer(trainData.distance(j, object, weights, 
+                        neighbours.bound()), j);
+            }
+        } else {
+            for (int j = 0; j < numOfInstances; j++){
+                neighbours.offer(trainData.distance(j, object, 
+                        neighbours.bound()), j);
+            }
+        }
+        neighbours.countDistances(numOfInstances);
+    }
+
+}
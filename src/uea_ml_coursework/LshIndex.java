@@ -0,0 +1,226 @@
+/*
+ * This is a locality-sensitive hashing index over the feature matrix of the
+ * training data, using random projections (p-stable hashing). Each hash
+ * projects an instance onto a random Gaussian direction and cuts the line
+ * into buckets of a fixed width, so close instances are likely to share a
+ * bucket. A table concatenates several hashes into one key and the index
+ * keeps several tables. A search only calculates distances to the instances
+ * that share a bucket with the object in at least one table. Each thread
+ * marks the instances it has searched in an array of its own that is reused
+ * between searches. Inspired by the following:
+ * (https://doi.org/10.1145/997817.997857)
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LshIndex implements NeighbourSearch {
+
+    /** The number of instances sampled to estimate the bucket width. */
+    private static final int SAMPLE_SIZE = 64;
+
+    /** The neighbour whose distance the bucket width is estimated from. */
+    private static final int SAMPLE_NEIGHBOURS = 10;
+
+    /** The bucket width as a multiple of the sampled neighbour distance. */
+    private static final double WIDTH_FACTOR = 4.0;
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final int numOfTables;
+    private final int numOfHashes;
+    private final double bucketWidth;
+    private final double[][] projections;
+    private final double[] offsets;
+    private final long[][] bucketKeys;
+    private final int[][] bucketStarts;
+    private final int[][] bucketMembers;
+    private final ThreadLocal<VisitMarks> searchMarks;
+
+    /**
+     * Constructor for building the hash tables.
+     * @param trainData The feature matrix of the training data.
+     * @param numOfTables The number of hash tables.
+     * @param numOfHashes The number of hashes concatenated in each table.
+     * @param bucketWidth The width of the buckets on each projection. If it is
+     * not positive, the width is estimated from the data.
+     * @param seed The seed for the random projections and the sample the
+     * bucket width is estimated from.
+     */
+    public LshIndex(FeatureMatrix trainData, int numOfTables, int numOfHashes,
+            double bucketWidth, long seed){
+
+        int numOfInstances = trainData.numInstances();
+        int numOfProjections = numOfTables * numOfHashes;
+        Random rand = new Random(seed);
+
+        this.trainData = trainData;
+        this.numOfTables = numOfTables;
+        this.numOfHashes = numOfHashes;
+        this.bucketWidth = bucketWidth > 0 ? bucketWidth
+                : estimateBucketWidth(trainData, rand);
+        this.projections = new double[numOfProjections][];
+        this.offsets = new double[numOfProjections];
+        this.bucketKeys = new long[numOfTables][];
+        this.bucketStarts = new int[numOfTables][];
+        this.bucketMembers = new int[numOfTables][];
+        this.searchMarks = VisitMarks.perThread(numOfInstances);
+
+        // Gaussian directions are 2-stable, which suits Euclidean distance
+        for (int p = 0; p < numOfProjections; p++){
+            projections[p] = new double[trainData.numAttributes()];
+            for (int j = 0; j < trainData.numAttributes(); j++){
+                projections[p][j] = rand.nextGaussian();
+            }
+            offsets[p] = rand.nextDouble() * this.bucketWidth;
+        }
+
+        for (int t = 0; t < numOfTables; t++){
+            long[] keys = new long[numOfInstances];
+            for (int i = 0; i < numOfInstances; i++){
+                keys[i] = hash(t, trainData.row(i));
+            }
+            buildTable(t, keys);
+        }
+    }
+
+    /**
+     * Searches the buckets of the object for its nearest neighbours. If the
+     * buckets hold fewer than K instances, all training data is searched.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    @Override
+    public void search(double[] object, NeighbourQueue neighbours){
+
+        VisitMarks marks = searchMarks.get();
+        int computed = 0;
+
+        marks.clear();
+
+        for (int t = 0; t < numOfTables; t++){
+            int bucket = Arrays.binarySearch(bucketKeys[t], hash(t, object));
+            if (bucket < 0){
+                continue;
+            }
+            for (int i = bucketStarts[t][bucket];
+                    i < bucketStarts[t][bucket + 1]; i++){
+                int candidate = bucketMembers[t][i];
+                if (marks.visit(candidate)){
+                    neighbours.offer(trainData.distance(candidate, object,
+                            neighbours.bound()), candidate);
+                    computed++;
+                }
+            }
+        }
+
+        // Too few candidates, go through the rest of the training data
+        if (!neighbours.isFull()){
+            for (int j = 0; j < trainData.numInstances(); j++){
+                if (marks.visit(j)){
+                    neighbours.offer(trainData.distance(j, object,
+                            neighbours.bound()), j);
+                    computed++;
+                }
+            }
+        }
+        neighbours.countDistances(computed);
+    }
+
+    /**
+     * Estimates a bucket width from the data. The width is a multiple of the
+     * typical distance of an instance to its nearest neighbours, measured on a
+     * random sample of the training data.
+     * @param trainData The feature matrix of the training data.
+     * @param rand The random number generator.
+     * @return The estimated bucket width.
+     */
+    private static double estimateBucketWidth(FeatureMatrix trainData,
+            Random rand){
+
+        int numOfInstances = trainData.numInstances();
+        int numOfSamples = Math.min(SAMPLE_SIZE, numOfInstances);
+        double[] sampleDistances = new double[numOfSamples];
+
+        for (int s = 0; s < numOfSamples; s++){
+            int sample = rand.nextInt(numOfInstances);
+            NeighbourQueue nearest = new NeighbourQueue(
+                    Math.min(SAMPLE_NEIGHBOURS + 1, numOfInstances), rand);
+            for (int j = 0; j < numOfInstances; j++){
+                nearest.offer(trainData.distance(sample, j), j);
+            }
+            sampleDistances[s] = Math.sqrt(nearest.bound());
+        }
+        Arrays.sort(sampleDistances);
+
+        double width = WIDTH_FACTOR * sampleDistances[numOfSamples / 2];
+        return width > 0 ? width : 1.0;
+    }
+
+    /**
+     * Calculates the key of the bucket an object falls into in a table.
+     * @param table The index of the table.
+     * @param object The attribute values of the object.
+     * @return The key of the bucket.
+     */
+    private long hash(int table, double[] object){
+
+        long key = 17;
+
+        for (int h = 0; h < numOfHashes; h++){
+            int p = table * numOfHashes + h;
+            double projection = offsets[p];
+            for (int j = 0; j < object.length; j++){
+                projection += projections[p][j] * object[j];
+            }
+            key = key * 1000003 + (long)Math.floor(projection / bucketWidth);
+        }
+
+        return key;
+    }
+
+    /**
+     * Groups the instances of a table by bucket. The buckets are kept sorted
+     * by key, so a bucket is found with a binary search, and the members of
+     * bucket b are stored between starts[b] and starts[b + 1].
+     * @param table The index of the table.
+     * @param keys The bucket key of every instance.
+     */
+    private void buildTable(int table, long[] keys){
+
+        int numOfInstances = keys.length;
+        long[] sortedKeys = keys.clone();
+        Arrays.sort(sortedKeys);
+
+        // Find the distinct keys
+        int numOfBuckets = 0;
+        for (int i = 0; i < numOfInstances; i++){
+            if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]){
+                sortedKeys[numOfBuckets++] = sortedKeys[i];
+            }
+        }
+        long[] distinctKeys = Arrays.copyOf(sortedKeys, numOfBuckets);
+
+        // Count the members of each bucket and place them
+        int[] starts = new int[numOfBuckets + 1];
+        int[] buckets = new int[numOfInstances];
+        for (int i = 0; i < numOfInstances; i++){
+            buckets[i] = Arrays.binarySearch(distinctKeys, keys[i]);
+            starts[buckets[i] + 1]++;
+        }
+        for (int b = 0; b < numOfBuckets; b++){
+            starts[b + 1] += starts[b];
+        }
+        int[] members = new int[numOfInstances];
+        int[] next = Arrays.copyOf(starts, numOfBuckets);
+        for (int i = 0; i < numOfInstances; i++){
+            members[next[buckets[i]]++] = i;
+        }
+
+        bucketKeys[table] = distinctKeys;
+        bucketStarts[table] = starts;
+        bucketMembers[table] = members;
+    }
+
+}
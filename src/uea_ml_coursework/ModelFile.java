@@ -0,0 +1,501 @@
+/*
+ * This is the binary file format for built KNN classifiers and KNN Ensembles,
+ * so a model can be scored by a new process without loading the ARFF file,
+ * standardising it and running LOOCV or cross validation again. A file starts
+ * with a magic number, the format version and the type of model, followed by
+ * the settings of the model, the means and standard deviations used to
+ * standardise objects, the chosen K, the ensemble weights and attribute masks,
+ * and the (standardised) feature matrices with their labels. Arrays of
+ * doubles start on a multiple of 8 bytes, counted from the start of the file
+ * in a long so the padding stays right past 2GB. Files are loaded through a
+ * memory mapped FileChannel, so the bytes come straight from the OS page
+ * cache, which several scoring processes share, and each matrix is copied
+ * out with a single bulk read. A KNN classifier can also be mapped without
+ * copying its matrix at all, in which case the matrix is read from the
+ * mapped file for as long as the classifier is used.
+ */
+package uea_ml_coursework;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class ModelFile {
+
+    /** The first four bytes of every model file, "KNNM". */
+    public static final int MAGIC = 0x4B4E4E4D;
+
+    /** The version of the format written by this class. */
+    public static final int VERSION = 2;
+
+    /** The type of a file that holds a KNN classifier. */
+    private static final int KNN_MODEL = 1;
+
+    /** The type of a file that holds a KNN Ensemble. */
+    private static final int ENSEMBLE_MODEL = 2;
+
+    /** Doubles are aligned to this number of bytes. */
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * Saves a built KNN classifier.
+     * @param knn The built classifier.
+     * @param file The file the model is written to.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void save(KNN knn, File file) throws IOException {
+        try (ModelOutputStream out = open(file, KNN_MODEL)){
+            knn.writeModel(out, null);
+        }
+    }
+
+    /**
+     * Saves a built KNN Ensemble.
+     * @param ensemble The built ensemble.
+     * @param file The file the model is written to.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void save(KnnEnsemble ensemble, File file)
+            throws IOException {
+        try (ModelOutputStream out = open(file, ENSEMBLE_MODEL)){
+            ensemble.writeModel(out);
+            // An ensemble is loaded from a single mapped buffer
+            if (out.position() > Integer.MAX_VALUE){
+                throw new IOException("An ensemble model cannot be larger "
+                        + "than 2GB: " + file);
+            }
+        }
+    }
+
+    /**
+     * Loads a KNN classifier saved with save(KNN, File).
+     * @param file The model file.
+     * @return The classifier, ready to classify objects.
+     * @throws IOException If the file cannot be read or is not a KNN model.
+     */
+    public static KNN loadKNN(File file) throws IOException {
+        ByteBuffer in = map(file, KNN_MODEL);
+        KNN knn = new KNN();
+        knn.readModel(in, null);
+        return knn;
+    }
+
+    /**
+     * Maps a KNN classifier saved with save(KNN, File) without copying its
+     * training data onto the heap. The feature matrix stays in the mapped
+     * file, so only the pages that are searched are read and the OS page
+     * cache holds them for every process that maps the same model. The
+     * classifier cannot be updated.
+     * @param file The model file.
+     * @return The classifier, ready to classify objects.
+     * @throws IOException If the file cannot be read or is not a KNN model.
+     */
+    public static KNN mapKNN(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)){
+            ByteBuffer in = map(channel, file, KNN_MODEL);
+            KNN knn = new KNN();
+            knn.readModel(in, null, channel);
+            return knn;
+        }
+    }
+
+    /**
+     * Loads a KNN Ensemble saved with save(KnnEnsemble, File).
+     * @param file The model file.
+     * @return The ensemble, ready to classify objects.
+     * @throws IOException If the file cannot be read or is not an ensemble
+     * model.
+     */
+    public static KnnEnsemble loadEnsemble(File file) throws IOException {
+        return KnnEnsemble.readModel(map(file, ENSEMBLE_MODEL));
+    }
+
+    /**
+     * Opens a model file for writing and writes its header.
+     * @param file The model file.
+     * @param type The type of model.
+     * @return The stream the model is written to.
+     * @throws IOException If the file cannot be written.
+     */
+    private static ModelOutputStream open(File file, int type)
+            throws IOException {
+        ModelOutputStream out = new ModelOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(type);
+        return out;
+    }
+
+    /**
+     * Maps a model file into memory and checks its header.
+     * @param file The model file.
+     * @param type The type of model expected.
+     * @return The buffer positioned after the header.
+     * @throws IOException If the file cannot be read, is not a model file,
+     * has a newer version or holds another type of model.
+     */
+    private static ByteBuffer map(File file, int type) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)){
+            return map(channel, file, type);
+        }
+    }
+
+    /**
+     * Maps the start of an open model file into memory, at most 2GB of it,
+     * and checks its header.
+     * @param channel The channel of the model file.
+     * @param file The model file.
+     * @param type The type of model expected.
+     * @return The buffer positioned after the header.
+     * @throws IOException If the file cannot be read, is not a model file,
+     * has a newer version or holds another type of model.
+     */
+    private static ByteBuffer map(FileChannel channel, File file, int type)
+            throws IOException {
+
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), Integer.MAX_VALUE));
+
+        if (in.remaining() < 12 || in.getInt() != MAGIC){
+            throw new IOException("Not a model file: " + file);
+        }
+        // Files of version 1 wrote the number of values as an int
+        int version = in.getInt();
+        if (version != VERSION){
+            throw new IOException("Unsupported model version " + version
+                    + ": " + file);
+        }
+        if (in.getInt() != type){
+            throw new IOException("Unexpected type of model: " + file);
+        }
+
+        return in;
+    }
+
+    /**
+     * Writes an array of integers, preceded by its length. A null array has
+     * a length of -1.
+     * @param out The stream the array is written to.
+     * @param values The array, or null.
+     * @throws IOException If the stream cannot be written.
+     */
+    public static void writeInts(ModelOutputStream out, int[] values)
+            throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null){
+            for (int value : values){
+                out.writeInt(value);
+            }
+        }
+    }
+
+    /**
+     * Reads an array of integers written by writeInts.
+     * @param in The buffer the array is read from.
+     * @return The array, or null.
+     */
+    public static int[] readInts(ByteBuffer in){
+
+        int length = in.getInt();
+        if (length < 0){
+            return null;
+        }
+
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * length);
+
+        return values;
+    }
+
+    /**
+     * Writes an array of doubles, preceded by its length and padded so that
+     * the values start on a multiple of 8 bytes. A null array has a length
+     * of -1.
+     * @param out The stream the array is written to.
+     * @param values The array, or null.
+     * @throws IOException If the stream cannot be written.
+     */
+    public static void writeDoubles(ModelOutputStream out, double[] values)
+            throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null){
+            align(out);
+            for (double value : values){
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    /**
+     * Reads an array of doubles written by writeDoubles.
+     * @param in The buffer the array is read from.
+     * @return The array, or null.
+     */
+    public static double[] readDoubles(ByteBuffer in){
+
+        int length = in.getInt();
+        if (length < 0){
+            return null;
+        }
+        in.position((in.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+
+        double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * length);
+
+        return values;
+    }
+
+    /**
+     * Writes an array of floats, preceded by its length and padded so that
+     * the values start on a multiple of 8 bytes. A null array has a length
+     * of -1.
+     * @param out The stream the array is written to.
+     * @param values The array, or null.
+     * @throws IOException If the stream cannot be written.
+     */
+    public static void writeFloats(ModelOutputStream out, float[] values)
+            throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null){
+            align(out);
+            for (float value : values){
+                out.writeFloat(value);
+            }
+        }
+    }
+
+    /**
+     * Reads an array of floats written by writeFloats.
+     * @param in The buffer the array is read from.
+     * @return The array, or null.
+     */
+    public static float[] readFloats(ByteBuffer in){
+
+        int length = in.getInt();
+        if (length < 0){
+            return null;
+        }
+        in.position((in.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+
+        float[] values = new float[length];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + 4 * length);
+
+        return values;
+    }
+
+    /**
+     * Writes a string as UTF-8, preceded by its length in bytes.
+     * @param out The stream the string is written to.
+     * @param text The string.
+     * @throws IOException If the stream cannot be written.
+     */
+    public static void writeString(ModelOutputStream out, String text)
+            throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     * @param in The buffer the string is read from.
+     * @return The string.
+     */
+    public static String readString(ByteBuffer in){
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a feature matrix, its number of attributes, labels and values.
+     * A view is written as a matrix of its own. The values are written row by
+     * row after their number, which is a long, so a matrix off the heap is 
+     * never copied onto it. The values may go past 2GB, where they are mapped
+     * in chunks, but the labels are read in place and must end within the
+     * first 2GB of the file.
+     * @param out The stream the matrix is written to.
+     * @param matrix The feature matrix.
+     * @throws IOException If the stream cannot be written, or the labels
+     * would end beyond the first 2GB of the file.
+     */
+    public static void writeMatrix(ModelOutputStream out, 
+            FeatureMatrix matrix) throws IOException {
+
+        int numOfInstances = matrix.numInstances();
+        int numOfAttr = matrix.numAttributes();
+        int[] labels = new int[numOfInstances];
+
+        for (int i = 0; i < numOfInstances; i++){
+            labels[i] = matrix.label(i);
+        }
+
+        out.writeInt(numOfAttr);
+        if (out.position() + 4 + 4L * numOfInstances > Integer.MAX_VALUE){
+            throw new IOException("The labels of the matrix would end beyond "
+                    + "the first 2GB of the model file");
+        }
+        writeInts(out, labels);
+        out.writeLong((long)numOfInstances * numOfAttr);
+        align(out);
+        for (int i = 0; i < numOfInstances; i++){
+            for (int j = 0; j < numOfAttr; j++){
+                out.writeDouble(matrix.value(i, j));
+            }
+        }
+    }
+
+    /**
+     * Reads a feature matrix written by writeMatrix onto the heap.
+     * @param in The buffer the matrix is read from.
+     * @return The feature matrix.
+     * @throws IllegalStateException If the values go beyond the buffer, in
+     * which case the matrix can only be mapped.
+     */
+    public static FeatureMatrix readMatrix(ByteBuffer in){
+        
+        int numOfAttr = in.getInt();
+        int[] labels = readInts(in);
+        long numOfValues = in.getLong();
+        in.position((in.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+        if (numOfValues > (in.limit() - in.position()) / 8){
+            throw new IllegalStateException("The matrix is too large to be "
+                    + "loaded onto the heap, it can only be mapped");
+        }
+        
+        double[] values = new double[(int)numOfValues];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        
+        return new FeatureMatrix(values, labels, numOfAttr);
+    }
+
+    /**
+     * Maps a feature matrix written by writeMatrix, without copying it. The
+     * labels are read from the buffer in place and the values are mapped
+     * from the file in chunks of whole rows, so they may lie beyond the 2GB
+     * the buffer can reach. The buffer must be mapped from the start of the
+     * file, so that its positions are offsets into the file.
+     * @param in The buffer the matrix is read from.
+     * @param channel The channel of the file the buffer was mapped from.
+     * @return The feature matrix off the heap.
+     * @throws IOException If the values cannot be mapped, or the labels are
+     * beyond the buffer.
+     */
+    public static FeatureMatrix mapMatrix(ByteBuffer in, FileChannel channel)
+            throws IOException {
+
+        int numOfAttr = in.getInt();
+        int numOfInstances = in.getInt();
+        if (4L * numOfInstances + 8 > in.remaining()){
+            throw new IOException("The labels of the matrix are beyond the "
+                    + "part of the file that can be mapped");
+        }
+        ByteBuffer labels = in.duplicate();
+        labels.limit(in.position() + 4 * numOfInstances);
+        in.position(in.position() + 4 * numOfInstances);
+
+        in.getLong();
+        long start = (in.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        int rowsPerChunk = FeatureMatrix.rowsPerChunk(numOfAttr);
+        DoubleBuffer[] chunks = new DoubleBuffer[Math.max(1,
+                (numOfInstances + rowsPerChunk - 1) / rowsPerChunk)];
+
+        for (int c = 0; c < chunks.length; c++){
+            long from = (long)c * rowsPerChunk;
+            long to = Math.min(numOfInstances, from + rowsPerChunk);
+            // Model files are written big-endian, the default of a buffer
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start + 8 * from * numOfAttr, 8 * (to - from) * numOfAttr)
+                    .asDoubleBuffer();
+        }
+        in.position((int)Math.min(in.limit(),
+                start + 8L * numOfInstances * numOfAttr));
+
+        return new FeatureMatrix(chunks, rowsPerChunk,
+                labels.slice().asIntBuffer(), numOfAttr);
+    }
+
+    /**
+     * Pads a stream with zeros up to the next multiple of 8 bytes from the
+     * start of the file.
+     * @param out The stream of the file.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void align(ModelOutputStream out) throws IOException {
+        while (out.position() % ALIGNMENT != 0){
+            out.writeByte(0);
+        }
+    }
+
+    /**
+     * This is the stream model and cache files are written with. It counts
+     * the bytes written in a long, since DataOutputStream.size() stops
+     * counting at Integer.MAX_VALUE.
+     */
+    public static class ModelOutputStream extends DataOutputStream {
+
+        /**
+         * Constructor for a stream that counts the bytes written to another.
+         * @param out The stream the bytes are written to.
+         */
+        public ModelOutputStream(OutputStream out){
+            super(new CountingOutputStream(out));
+        }
+
+        /**
+         * Accessor for the number of bytes written.
+         * @return The number of bytes written so far.
+         */
+        public long position(){
+            return ((CountingOutputStream)this.out).count;
+        }
+
+    }
+
+    /**
+     * This is a stream that counts the bytes passed through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        /**
+         * Constructor for a stream that counts the bytes written to another.
+         * @param out The stream the bytes are written to.
+         */
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+}
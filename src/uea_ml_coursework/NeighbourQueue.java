@@ -0,0 +1,216 @@
+/*
+ * This is a bounded max-heap used for selecting the K nearest neighbours of an
+ * object in a single pass over the training data. The root of the heap is the
+ * furthest of the neighbours kept so far, so a candidate only needs to be
+ * compared against the root to decide whether it belongs to the K nearest.
+ */
+package uea_ml_coursework;
+
+import java.util.Random;
+
+public class NeighbourQueue {
+
+    // Class properties
+    private final double[] distances;
+    private final int[] indices;
+    private final Random rand;
+    private int size;
+    private int distanceCount;
+
+    /**
+     * Constructor for initialising the neighbour queue.
+     * @param k The number of neighbours to keep.
+     */
+    public NeighbourQueue(int k){
+        this.distances = new double[k];
+        this.indices = new int[k];
+        this.rand = null;
+        this.size = 0;
+        this.distanceCount = 0;
+    }
+
+    /**
+     * Constructor for initialising the neighbour queue with its own random
+     * number generator, so that ties are settled the same way every time.
+     * @param k The number of neighbours to keep.
+     * @param rand The random number generator for settling ties.
+     */
+    public NeighbourQueue(int k, Random rand){
+        this.distances = new double[k];
+        this.indices = new int[k];
+        this.rand = rand;
+        this.size = 0;
+        this.distanceCount = 0;
+    }
+
+    /**
+     * Accessor for the number of neighbours currently kept.
+     * @return The number of neighbours.
+     */
+    public int size(){
+        return this.size;
+    }
+
+    /**
+     * Accessor for the maximum number of neighbours kept.
+     * @return The value of K.
+     */
+    public int capacity(){
+        return this.indices.length;
+    }
+
+    /**
+     * Checks whether the queue holds K neighbours.
+     * @return True if the queue is full, false otherwise.
+     */
+    public boolean isFull(){
+        return this.size == this.indices.length;
+    }
+
+    /**
+     * Accessor for the distance a candidate has to beat to enter the queue.
+     * @return The distance of the furthest neighbour if the queue is full,
+     * infinity otherwise. A queue that keeps no neighbours accepts nothing,
+     * so its bound is negative infinity.
+     */
+    public double bound(){
+        if (indices.length == 0){
+            return Double.NEGATIVE_INFINITY;
+        }
+        return isFull() ? distances[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Accessor for the index of a neighbour. The neighbours are kept in heap
+     * order, not in order of distance.
+     * @param i The position of the neighbour in the queue.
+     * @return The index of the neighbour in the training data.
+     */
+    public int index(int i){
+        return indices[i];
+    }
+
+    /**
+     * Accessor for the distance of a neighbour.
+     * @param i The position of the neighbour in the queue.
+     * @return The distance of the neighbour to the object.
+     */
+    public double distance(int i){
+        return distances[i];
+    }
+
+    /**
+     * Accessor for the number of distances calculated while searching for the
+     * neighbours in this queue.
+     * @return The number of distance calculations.
+     */
+    public int getDistanceCount(){
+        return this.distanceCount;
+    }
+
+    /**
+     * Adds to the number of distances calculated by the search.
+     * @param count The number of distance calculations to add.
+     */
+    public void countDistances(int count){
+        this.distanceCount += count;
+    }
+
+    /**
+     * Empties the queue so that it can be reused for another object.
+     */
+    public void clear(){
+        this.size = 0;
+        this.distanceCount = 0;
+    }
+
+    /**
+     * Offers a candidate to the queue. If the candidate is as far as the
+     * furthest neighbour kept, one of them is chosen randomly.
+     * @param distance The distance of the candidate to the object.
+     * @param index The index of the candidate in the training data.
+     * @return True if the candidate was added, false otherwise.
+     */
+    public boolean offer(double distance, int index){
+
+        if (size < indices.length){
+            // Add to the end and move it up to its place in the heap
+            int i = size++;
+            while (i > 0){
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] >= distance){
+                    break;
+                }
+                distances[i] = distances[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+            return true;
+        }
+
+        // If distances are same choose randomly
+        if (size == 0 || distance > distances[0]
+                || (distance == distances[0] && (rand == null 
+                        ? Math.random() : rand.nextDouble()) >= 0.5)){
+            return false;
+        }
+
+        // Replace the furthest neighbour and move the candidate down
+        int i = 0;
+        while (true){
+            int child = 2 * i + 1;
+            if (child >= size){
+                break;
+            }
+            if (child + 1 < size && distances[child + 1] > distances[child]){
+                child++;
+            }
+            if (distances[child] <= distance){
+                break;
+            }
+            distances[i] = distances[child];
+            indices[i] = indices[child];
+            i = child;
+        }
+        distances[i] = distance;
+        indices[i] = index;
+        return true;
+    }
+
+    /**
+     * Sorts the neighbours in ascending order of distance. The queue is no
+     * longer a heap afterwards and should be cleared before it is reused.
+     */
+    public void sort(){
+
+        // Heap sort, the furthest neighbour is moved to the end each time
+        for (int end = size - 1; end > 0; end--){
+            double tempDistance = distances[end];
+            int tempIndex = indices[end];
+            distances[end] = distances[0];
+            indices[end] = indices[0];
+
+            int i = 0;
+            while (true){
+                int child = 2 * i + 1;
+                if (child >= end){
+                    break;
+                }
+                if (child + 1 < end && distances[child + 1] > distances[child]){
+                    child++;
+                }
+                if (distances[child] <= tempDistance){
+                    break;
+                }
+                distances[i] = distances[child];
+                indices[i] = indices[child];
+                i = child;
+            }
+            distances[i] = tempDistance;
+            indices[i] = tempIndex;
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+/*
+ * This is the interface of the search strategies used by the KNN classifier to
+ * find the nearest neighbours of an object in the training data. Every
+ * strategy is built once over the feature matrix of the training data and is
+ * then queried for every object to be classified.
+ */
+package uea_ml_coursework;
+
+public interface NeighbourSearch {
+
+    /**
+     * Searches the training data for the nearest neighbours of an object.
+     * @param object The (standardised) attribute values of the object.
+     * @param neighbours The queue that the nearest neighbours are offered to.
+     */
+    void search(double[] object, NeighbourQueue neighbours);
+
+}
@@ -0,0 +1,640 @@
+/*
+ * This is a fast reader for ARFF files whose attributes are all numeric or
+ * nominal, such as the datasets used with the KNN classifier. Weka's reader
+ * tokenises every value into a String and builds an Instance object per row.
+ * This reader reads the file through an NIO channel in large chunks, parses
+ * the values of the data section straight from the bytes and stores them in
+ * one flat array, row by row. Weka Instances are only built when asked for.
+ * Nominal values are stored as the index of the value, missing values as NaN,
+ * the same as Weka does. Numbers with at most 15 significant digits and a
+ * small exponent are converted with a single exactly rounded multiplication
+ * or division, any other number goes through Double.parseDouble, so the
+ * values are always the same as Weka's. Sparse rows, instance weights and
+ * string, date or relational attributes are not supported.
+ */
+package uea_ml_coursework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.tools.WekaTools;
+
+public class NumericArffReader {
+
+    /** The number of bytes read from the file at a time. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** The number of rows the values have room for at first. */
+    private static final int INITIAL_ROWS = 1024;
+
+    /** The most significant digits that are converted exactly. */
+    private static final int EXACT_DIGITS = 15;
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+        1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Class properties
+    private String relationName;
+    private final List<String> attributeNames;
+    private final List<String[]> nominalValues;
+    private byte[][][] nominalBytes;
+    private boolean inData;
+    private int numOfAttr;
+    private int numOfInstances;
+    private double[] values;
+
+    /**
+     * Constructor for an empty reader, filled by read.
+     */
+    private NumericArffReader(){
+        this.relationName = "";
+        this.attributeNames = new ArrayList<String>();
+        this.nominalValues = new ArrayList<String[]>();
+        this.nominalBytes = null;
+        this.inData = false;
+        this.numOfAttr = 0;
+        this.numOfInstances = 0;
+        this.values = new double[0];
+    }
+
+    /**
+     * Constructor for values that were read before, such as the values held
+     * by the dataset cache.
+     * @param relationName The name of the relation.
+     * @param attributeNames The name of every attribute.
+     * @param nominalValues The values of every attribute, null for numeric
+     * ones.
+     * @param values The values of every instance, row by row.
+     */
+    public NumericArffReader(String relationName, List<String> attributeNames,
+            List<String[]> nominalValues, double[] values){
+        this.relationName = relationName;
+        this.attributeNames = new ArrayList<String>(attributeNames);
+        this.nominalValues = new ArrayList<String[]>(nominalValues);
+        this.nominalBytes = null;
+        this.inData = true;
+        this.numOfAttr = attributeNames.size();
+        this.numOfInstances = numOfAttr == 0 ? 0 : values.length / numOfAttr;
+        this.values = values;
+    }
+
+    /**
+     * Loads a dataset the same way WekaTools.loadData does, with the fast
+     * reader. Files the reader does not support are loaded by
+     * WekaTools.loadData.
+     * @param dataLocation The ARFF file of the dataset.
+     * @param shuffle Flag to whether shuffle the order of instances.
+     * @return The dataset (Instances) object, null if it cannot be loaded.
+     */
+    public static Instances loadData(String dataLocation, boolean shuffle){
+
+        Instances data;
+        try{
+            data = read(new File(dataLocation)).toInstances();
+        } catch (IOException e){
+            return WekaTools.loadData(dataLocation, shuffle);
+        }
+
+        // Set the last attribute as the class value
+        data.setClassIndex(data.numAttributes() - 1);
+        if (shuffle){
+            data.randomize(data.getRandomNumberGenerator(
+                    (long)(Math.random() * 1000)));
+        }
+
+        return data;
+    }
+
+    /**
+     * Reads an ARFF file.
+     * @param file The ARFF file.
+     * @return The reader holding the values of the file.
+     * @throws IOException If the file cannot be read, is not a valid ARFF
+     * file or uses a feature this reader does not support.
+     */
+    public static NumericArffReader read(File file) throws IOException {
+
+        NumericArffReader reader = new NumericArffReader();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean endOfFile = false;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)){
+            while (!endOfFile){
+                endOfFile = channel.read(buffer) < 0;
+                byte[] bytes = buffer.array();
+                int end = buffer.position();
+
+                // Only parse whole lines, the rest waits for the next chunk
+                int linesEnd = end;
+                if (!endOfFile){
+                    while (linesEnd > 0 && bytes[linesEnd - 1] != '\n'){
+                        linesEnd--;
+                    }
+                    if (linesEnd == 0){
+                        // A line longer than the buffer
+                        if (!buffer.hasRemaining()){
+                            buffer = ByteBuffer.allocate(2 * bytes.length)
+                                    .put(bytes, 0, end);
+                        }
+                        continue;
+                    }
+                }
+
+                reader.parseLines(bytes, linesEnd);
+                System.arraycopy(bytes, linesEnd, bytes, 0, end - linesEnd);
+                buffer.position(end - linesEnd);
+            }
+        }
+
+        if (!reader.inData){
+            throw new IOException("No @data section in " + file);
+        }
+        reader.values = Arrays.copyOf(reader.values,
+                reader.numOfInstances * reader.numOfAttr);
+
+        return reader;
+    }
+
+    /**
+     * Accessor for the name of the relation.
+     * @return The name of the relation.
+     */
+    public String getRelationName(){
+        return this.relationName;
+    }
+
+    /**
+     * Accessor for the number of instances.
+     * @return The number of rows read.
+     */
+    public int numInstances(){
+        return this.numOfInstances;
+    }
+
+    /**
+     * Accessor for the number of attributes, including the class attribute.
+     * @return The number of values in each row.
+     */
+    public int numAttributes(){
+        return this.numOfAttr;
+    }
+
+    /**
+     * Accessor for the name of an attribute.
+     * @param attr The index of the attribute.
+     * @return The name of the attribute.
+     */
+    public String attributeName(int attr){
+        return attributeNames.get(attr);
+    }
+
+    /**
+     * Accessor for the values of a nominal attribute.
+     * @param attr The index of the attribute.
+     * @return The values of the attribute, null if it is numeric.
+     */
+    public String[] getNominalValues(int attr){
+        return nominalValues.get(attr);
+    }
+
+    /**
+     * Accessor for the values of every instance, row by row. Nominal values
+     * are the index of the value and missing values are NaN.
+     * @return The values, the value of attribute j of instance i is at
+     * i * numAttributes() + j.
+     */
+    public double[] getValues(){
+        return this.values;
+    }
+
+    /**
+     * Builds Weka Instances from the values read. No class attribute is set,
+     * as with Weka's reader.
+     * @return The dataset.
+     */
+    public Instances toInstances(){
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < numOfAttr; j++){
+            if (nominalValues.get(j) == null){
+                attributes.add(new Attribute(attributeNames.get(j)));
+            } else {
+                attributes.add(new Attribute(attributeNames.get(j),
+                        Arrays.asList(nominalValues.get(j))));
+            }
+        }
+
+        Instances data = new Instances(relationName, attributes,
+                numOfInstances);
+        for (int i = 0; i < numOfInstances; i++){
+            data.add(new DenseInstance(1.0, Arrays.copyOfRange(values,
+                    i * numOfAttr, (i + 1) * numOfAttr)));
+        }
+
+        return data;
+    }
+
+    /**
+     * Parses the whole lines at the start of a chunk of the file.
+     * @param bytes The chunk of the file.
+     * @param end The position after the last line of the chunk.
+     * @throws IOException If a line is not valid.
+     */
+    private void parseLines(byte[] bytes, int end) throws IOException {
+
+        int start = 0;
+
+        while (start < end){
+            int lineEnd = start;
+            while (lineEnd < end && bytes[lineEnd] != '\n'){
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > start && bytes[lineEnd - 1] == '\r'){
+                lineEnd--;
+            }
+
+            if (inData){
+                parseRow(bytes, start, lineEnd);
+            } else {
+                parseHeaderLine(new String(bytes, start, lineEnd - start,
+                        StandardCharsets.UTF_8).trim());
+            }
+            start = next;
+        }
+    }
+
+    /**
+     * Parses a line of the header.
+     * @param line The trimmed line.
+     * @throws IOException If the line is not valid or not supported.
+     */
+    private void parseHeaderLine(String line) throws IOException {
+
+        if (line.isEmpty() || line.charAt(0) == '%'){
+            return;
+        }
+
+        String lowerCase = line.toLowerCase();
+        if (lowerCase.startsWith("@relation")){
+            relationName = unquote(line.substring(9).trim());
+        } else if (lowerCase.startsWith("@attribute")){
+            parseAttribute(line.substring(10).trim());
+        } else if (lowerCase.startsWith("@data")){
+            startData();
+        } else {
+            throw new IOException("Unexpected line in the header: " + line);
+        }
+    }
+
+    /**
+     * Parses the name and type of an attribute.
+     * @param declaration The declaration after the @attribute keyword.
+     * @throws IOException If the type is not supported.
+     */
+    private void parseAttribute(String declaration) throws IOException {
+
+        int nameEnd;
+        if (declaration.startsWith("'") || declaration.startsWith("\"")){
+            nameEnd = declaration.indexOf(declaration.charAt(0), 1) + 1;
+        } else {
+            nameEnd = 0;
+            while (nameEnd < declaration.length()
+                    && !Character.isWhitespace(declaration.charAt(nameEnd))
+                    && declaration.charAt(nameEnd) != '{'){
+                nameEnd++;
+            }
+        }
+        if (nameEnd <= 0){
+            throw new IOException("Invalid attribute: " + declaration);
+        }
+
+        String name = unquote(declaration.substring(0, nameEnd));
+        String type = declaration.substring(nameEnd).trim();
+        String lowerCase = type.toLowerCase();
+
+        if (lowerCase.equals("numeric") || lowerCase.equals("real")
+                || lowerCase.equals("integer")){
+            attributeNames.add(name);
+            nominalValues.add(null);
+        } else if (type.startsWith("{") && type.endsWith("}")){
+            String[] labels = type.substring(1, type.length() - 1)
+                    .split(",");
+            for (int i = 0; i < labels.length; i++){
+                labels[i] = unquote(labels[i].trim());
+            }
+            attributeNames.add(name);
+            nominalValues.add(labels);
+        } else {
+            throw new IOException("Unsupported attribute type: " + type);
+        }
+    }
+
+    /**
+     * Prepares the values for the data section once the header is read.
+     * @throws IOException If no attribute was declared.
+     */
+    private void startData() throws IOException {
+
+        numOfAttr = attributeNames.size();
+        if (numOfAttr == 0){
+            throw new IOException("No attributes before @data");
+        }
+
+        nominalBytes = new byte[numOfAttr][][];
+        for (int j = 0; j < numOfAttr; j++){
+            String[] labels = nominalValues.get(j);
+            if (labels != null){
+                nominalBytes[j] = new byte[labels.length][];
+                for (int v = 0; v < labels.length; v++){
+                    nominalBytes[j][v] = labels[v].getBytes(
+                            StandardCharsets.UTF_8);
+                }
+            }
+        }
+        values = new double[INITIAL_ROWS * numOfAttr];
+        inData = true;
+    }
+
+    /**
+     * Parses a row of the data section into the values.
+     * @param bytes The chunk of the file.
+     * @param start The first position of the row.
+     * @param end The position after the row.
+     * @throws IOException If the row is not valid or not supported.
+     */
+    private void parseRow(byte[] bytes, int start, int end)
+            throws IOException {
+
+        int position = skipSpaces(bytes, start, end);
+        if (position == end || bytes[position] == '%'){
+            return;
+        }
+        if (bytes[position] == '{'){
+            throw new IOException("Sparse instances are not supported");
+        }
+
+        if ((numOfInstances + 1) * numOfAttr > values.length){
+            values = Arrays.copyOf(values, 2 * values.length);
+        }
+        int offset = numOfInstances * numOfAttr;
+
+        for (int j = 0; j < numOfAttr; j++){
+            position = skipSpaces(bytes, position, end);
+
+            // Find the end of the value, quotes may hold commas
+            int valueEnd = position;
+            if (position < end
+                    && (bytes[position] == '\'' || bytes[position] == '"')){
+                valueEnd++;
+                while (valueEnd < end && bytes[valueEnd] != bytes[position]){
+                    valueEnd++;
+                }
+                valueEnd = Math.min(valueEnd + 1, end);
+            }
+            while (valueEnd < end && bytes[valueEnd] != ','){
+                valueEnd++;
+            }
+            int separator = valueEnd;
+            while (valueEnd > position && isSpace(bytes[valueEnd - 1])){
+                valueEnd--;
+            }
+
+            values[offset + j] = parseValue(j, bytes, position, valueEnd);
+
+            if (j < numOfAttr - 1){
+                if (separator == end){
+                    throw new IOException("Too few values in row "
+                            + (numOfInstances + 1));
+                }
+                position = separator + 1;
+            } else if (separator != end){
+                throw new IOException("Too many values in row "
+                        + (numOfInstances + 1));
+            }
+        }
+
+        numOfInstances++;
+    }
+
+    /**
+     * Parses a single value of a row.
+     * @param attr The index of the attribute.
+     * @param bytes The chunk of the file.
+     * @param start The first position of the value.
+     * @param end The position after the value.
+     * @return The numeric value, the index of a nominal value or NaN if the
+     * value is missing.
+     * @throws IOException If the value is not valid.
+     */
+    private double parseValue(int attr, byte[] bytes, int start, int end)
+            throws IOException {
+
+        if (end - start == 1 && bytes[start] == '?'){
+            return Double.NaN;
+        }
+
+        if (nominalBytes[attr] == null){
+            return parseNumber(bytes, start, end);
+        }
+
+        // Quotes are not part of a nominal value
+        if (end - start >= 2 && (bytes[start] == '\'' || bytes[start] == '"')
+                && bytes[end - 1] == bytes[start]){
+            start++;
+            end--;
+        }
+        byte[][] labels = nominalBytes[attr];
+        for (int v = 0; v < labels.length; v++){
+            if (labels[v].length == end - start && matches(labels[v], bytes,
+                    start)){
+                return v;
+            }
+        }
+
+        throw new IOException("Unknown value of " + attributeNames.get(attr)
+                + ": " + new String(bytes, start, end - start,
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a decimal number without creating a String. Numbers the fast
+     * path cannot convert exactly are passed to Double.parseDouble.
+     * @param bytes The chunk of the file.
+     * @param start The first position of the number.
+     * @param end The position after the number.
+     * @return The number.
+     * @throws IOException If the bytes are not a number.
+     */
+    private static double parseNumber(byte[] bytes, int start, int end)
+            throws IOException {
+
+        int position = start, digit;
+        boolean negative = false;
+        long mantissa = 0;
+        int exponent = 0, significantDigits, numOfDigits;
+
+        if (position < end && (bytes[position] == '-'
+                || bytes[position] == '+')){
+            negative = bytes[position] == '-';
+            position++;
+        }
+
+        // Leading zeros are not significant
+        int integerStart = position;
+        while (position < end && bytes[position] == '0'){
+            position++;
+        }
+        // Integer digits, a mantissa that overflows has too many digits
+        // and is parsed the slow way
+        int digitsStart = position;
+        while (position < end && (digit = bytes[position] - '0') >= 0
+                && digit <= 9){
+            mantissa = mantissa * 10 + digit;
+            position++;
+        }
+        significantDigits = position - digitsStart;
+        numOfDigits = position - integerStart;
+
+        // Fraction digits
+        if (position < end && bytes[position] == '.'){
+            position++;
+            int fractionStart = position;
+            if (mantissa == 0){
+                while (position < end && bytes[position] == '0'){
+                    position++;
+                }
+            }
+            digitsStart = position;
+            while (position < end && (digit = bytes[position] - '0') >= 0
+                    && digit <= 9){
+                mantissa = mantissa * 10 + digit;
+                position++;
+            }
+            significantDigits += position - digitsStart;
+            numOfDigits += position - fractionStart;
+            exponent = fractionStart - position;
+        }
+
+        // Exponent
+        if (position < end && numOfDigits > 0
+                && (bytes[position] == 'e' || bytes[position] == 'E')){
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (bytes[position] == '-'
+                    || bytes[position] == '+')){
+                negativeExponent = bytes[position] == '-';
+                position++;
+            }
+            int exponentStart = position, power = 0;
+            while (position < end && bytes[position] >= '0'
+                    && bytes[position] <= '9' && power < 10000){
+                power = power * 10 + (bytes[position] - '0');
+                position++;
+            }
+            if (position == exponentStart){
+                return parseSlowly(bytes, start, end);
+            }
+            exponent += negativeExponent ? -power : power;
+        }
+
+        // Anything else, or digits that would be rounded, goes the slow way
+        if (position != end || numOfDigits == 0
+                || significantDigits > EXACT_DIGITS
+                || exponent < -22 || exponent > 22){
+            return parseSlowly(bytes, start, end);
+        }
+
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a number with Double.parseDouble.
+     * @param bytes The chunk of the file.
+     * @param start The first position of the number.
+     * @param end The position after the number.
+     * @return The number.
+     * @throws IOException If the bytes are not a number.
+     */
+    private static double parseSlowly(byte[] bytes, int start, int end)
+            throws IOException {
+
+        String number = new String(bytes, start, end - start,
+                StandardCharsets.UTF_8);
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e){
+            throw new IOException("Not a number: " + number);
+        }
+    }
+
+    /**
+     * Checks whether a label is found at a position of a chunk.
+     * @param label The bytes of the label.
+     * @param bytes The chunk of the file.
+     * @param start The position of the value.
+     * @return True if the value is the label, false otherwise.
+     */
+    private static boolean matches(byte[] label, byte[] bytes, int start){
+        for (int i = 0; i < label.length; i++){
+            if (label[i] != bytes[start + i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips spaces and tabs.
+     * @param bytes The chunk of the file.
+     * @param start The position to start at.
+     * @param end The position to stop at.
+     * @return The position of the first other byte, or end.
+     */
+    private static int skipSpaces(byte[] bytes, int start, int end){
+        while (start < end && isSpace(bytes[start])){
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Checks whether a byte is a space or a tab.
+     * @param b The byte.
+     * @return True if the byte is a space or a tab, false otherwise.
+     */
+    private static boolean isSpace(byte b){
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Removes the quotes around a name or value.
+     * @param text The text, which may be quoted.
+     * @return The text without quotes.
+     */
+    private static String unquote(String text){
+        if (text.length() >= 2 && (text.charAt(0) == '\''
+                || text.charAt(0) == '"')
+                && text.charAt(text.length() - 1) == text.charAt(0)){
+            return text.substring(1, text.length() - 1);
+        }
+        return text;
+    }
+
+}
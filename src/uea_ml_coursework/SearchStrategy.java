@@ -0,0 +1,31 @@
+/*
+ * These are the strategies the KNN classifier can use to search for the
+ * nearest neighbours of an object.
+ */
+package uea_ml_coursework;
+
+public enum SearchStrategy {
+
+    /** Calculates the distance to every training instance. */
+    LINEAR,
+
+    /**
+     * Uses a KD-tree, falls back to LINEAR for high dimensional or small data,
+     * or if the tree does not prune enough of it.
+     */
+    KD_TREE,
+
+    /**
+     * Uses a ball tree, which keeps pruning on some high dimensional data.
+     * Falls back to LINEAR for small data, or if the tree does not prune
+     * enough of it.
+     */
+    BALL_TREE,
+
+    /** Uses an HNSW graph, approximate but fast on large datasets. */
+    HNSW,
+
+    /** Uses random projection hash tables, approximate and cheap to build. */
+    LSH
+
+}
@@ -0,0 +1,117 @@
+/*
+ * This is a neighbour search for several KNN classifiers at once, where each
+ * classifier uses a subset of the attributes of the same feature matrix, as
+ * the attribute resampling members of the KNN Ensemble do. Squared Euclidean
+ * distance is a sum over attributes, so the squared difference of every
+ * attribute is calculated once per instance and each classifier adds up the
+ * attributes of its own subset. Every classifier adds them in the order and
+ * with the sums its own search would use, so it finds exactly the distances
+ * and neighbours it would find searching on its own.
+ */
+package uea_ml_coursework;
+
+import java.util.Random;
+
+public class SharedDistanceSearch {
+
+    // Class properties
+    private final FeatureMatrix trainData;
+    private final int[][] columns;
+    private final int[][] orders;
+    private final DistanceKernel[] kernels;
+    private final int[] ks;
+
+    /**
+     * Constructor for the search over a feature matrix.
+     * @param trainData The feature matrix shared by the classifiers.
+     * @param memberColumns The attributes each classifier uses in ascending
+     * order, null for all of them.
+     * @param memberData The training data of each classifier, which holds
+     * the rows of the shared matrix on its own attributes.
+     * @param ks The number of neighbours of each classifier.
+     */
+    public SharedDistanceSearch(FeatureMatrix trainData, int[][] memberColumns,
+            FeatureMatrix[] memberData, int[] ks){
+
+        this.trainData = trainData;
+        this.columns = new int[memberColumns.length][];
+        this.orders = new int[memberColumns.length][];
+        this.kernels = new DistanceKernel[memberColumns.length];
+        this.ks = ks.clone();
+
+        for (int m = 0; m < memberColumns.length; m++){
+            columns[m] = memberColumns[m] == null 
+                    ? allColumns(trainData.numAttributes()) 
+                    : memberColumns[m].clone();
+            orders[m] = memberData[m].getAttributeOrder();
+            kernels[m] = memberData[m].getKernel();
+        }
+    }
+
+    /**
+     * Accessor for the number of classifiers.
+     * @return The number of classifiers searched for.
+     */
+    public int numMembers(){
+        return this.ks.length;
+    }
+
+    /**
+     * Searches the nearest neighbours of an object for every classifier in
+     * one pass over the feature matrix.
+     * @param object The (standardised) attribute values of the object.
+     * @param rands The random number generator each classifier settles ties
+     * with, or null.
+     * @return The neighbours of each classifier in ascending order of
+     * distance.
+     */
+    public NeighbourQueue[] search(double[] object, Random[] rands){
+
+        int numOfAttr = trainData.numAttributes();
+        double[] squaredDifferences = new double[numOfAttr];
+        NeighbourQueue[] neighbours = new NeighbourQueue[ks.length];
+        double difference;
+
+        for (int m = 0; m < ks.length; m++){
+            neighbours[m] = new NeighbourQueue(ks[m], 
+                    rands == null ? null : rands[m]);
+        }
+
+        for (int row = 0; row < trainData.numInstances(); row++){
+
+            for (int j = 0; j < numOfAttr; j++){
+                difference = trainData.value(row, j) - object[j];
+                squaredDifferences[j] = difference * difference;
+            }
+
+            for (int m = 0; m < ks.length; m++){
+                neighbours[m].offer(kernels[m].addSquares(squaredDifferences,
+                        columns[m], orders[m]), row);
+            }
+        }
+
+        for (int m = 0; m < ks.length; m++){
+            neighbours[m].countDistances(trainData.numInstances());
+            neighbours[m].sort();
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Lists every attribute of the feature matrix.
+     * @param numOfAttr The number of attributes of the feature matrix.
+     * @return The attributes in ascending order.
+     */
+    private static int[] allColumns(int numOfAttr){
+
+        int[] all = new int[numOfAttr];
+
+        for (int j = 0; j < numOfAttr; j++){
+            all[j] = j;
+        }
+
+        return all;
+    }
+
+}
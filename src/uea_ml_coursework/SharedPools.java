@@ -0,0 +1,39 @@
+/*
+ * These are the fork/join pools shared by the parallel passes of the KNN
+ * classifier, one for each level of parallelism. Starting the threads of a
+ * pool can cost more than a short pass over a small dataset, and an ensemble
+ * runs such passes for every one of its members, so a pool is created the
+ * first time it is asked for and kept. The threads of a pool are daemons that
+ * end once they have been idle for a while, so kept pools neither hold on to
+ * threads nor keep the JVM running.
+ */
+package uea_ml_coursework;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+public class SharedPools {
+
+    /** The pools created so far, by their parallelism. */
+    private static final Map<Integer, ForkJoinPool> POOLS =
+            new HashMap<Integer, ForkJoinPool>();
+
+    /**
+     * Accessor for the shared pool of a level of parallelism. The pool must
+     * not be shut down by the caller.
+     * @param parallelism The number of threads of the pool.
+     * @return The fork/join pool.
+     */
+    public static synchronized ForkJoinPool get(int parallelism){
+
+        ForkJoinPool pool = POOLS.get(parallelism);
+        if (pool == null){
+            pool = new ForkJoinPool(parallelism);
+            POOLS.put(parallelism, pool);
+        }
+
+        return pool;
+    }
+
+}
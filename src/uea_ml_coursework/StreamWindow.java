@@ -0,0 +1,18 @@
+/*
+ * These are the ways an updateable KNN classifier can bound the number of
+ * instances it keeps while it is updated with a stream of instances.
+ */
+package uea_ml_coursework;
+
+public enum StreamWindow {
+
+    /** Keeps every instance. */
+    UNBOUNDED,
+
+    /** Keeps the most recent instances, the oldest one is evicted first. */
+    SLIDING,
+
+    /** Keeps a uniform random sample of every instance seen so far. */
+    RESERVOIR
+
+}
@@ -6,11 +6,23 @@ package uea_ml_coursework;
 
 import weka.classifiers.Evaluation;
 import weka.core.Instances;
+import weka.core.Instance;
 import weka.tools.WekaTools;
 import static weka.tools.WekaTools.confusionMatrix;
 import static weka.tools.WekaTools.printConfusionMatrix;
 import java.io.File;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import utilities.InstanceTools;
 import weka.classifiers.functions.MultilayerPerceptron;
 import weka.classifiers.trees.RandomForest;
@@ -32,18 +44,10 @@ public class UEA_ML_Coursework {
             Instances testData){
         
         int[] classificationResults = new int[testData.numInstances()];
+        double[] batchResults = classifier.classifyBatch(testData);
         
         for (int i = 0; i < testData.numInstances(); i++){
-            
-            try {
-                classificationResults[i] = (int)classifier.classifyInstance(testData.instance(i));
-                
-            } catch (Exception e) {
-                
-                System.out.println("There was an issue classifying\n" + e);
-                
-            }
-            
+            classificationResults[i] = (int)batchResults[i];
         }
         
         return classificationResults;
@@ -61,7 +65,7 @@ public class UEA_ML_Coursework {
         
         // Loading the data
         try{
-            trainData = WekaTools.loadData(dataLocation, false);
+            trainData = NumericArffReader.loadData(dataLocation, false);
         } catch (Exception e){
             System.out.println("There was an issue loading the data \n" + e );
         }
@@ -88,7 +92,7 @@ public class UEA_ML_Coursework {
             
             // Classifying the unclassified objects from Part 1
             try {
-                testData = WekaTools.loadData(testDataLocation, false);
+                testData = NumericArffReader.loadData(testDataLocation, false);
             } catch (Exception e){
                 System.out.println("Error loading test data\n" + e);
             }
@@ -125,7 +129,7 @@ public class UEA_ML_Coursework {
         
         // Loading the data
         try{
-            trainData = WekaTools.loadData(dataLocation, false);
+            trainData = NumericArffReader.loadData(dataLocation, false);
         } catch (Exception e){
             System.out.println("There was an issue loading the data \n" + e );
         }
@@ -180,7 +184,7 @@ public class UEA_ML_Coursework {
         
         // Loading the data
         try{
-            trainData = WekaTools.loadData(dataLocation, false);
+            trainData = NumericArffReader.loadData(dataLocation, false);
         } catch (Exception e){
             System.out.println("There was an issue loading the data \n" + e );
         }
@@ -228,7 +232,7 @@ public class UEA_ML_Coursework {
         
         // Loading the data
         try{
-            trainData = WekaTools.loadData(dataLocation, false);
+            trainData = NumericArffReader.loadData(dataLocation, false);
         } catch (Exception e){
             System.out.println("There was an issue loading the data \n" + e );
         }
@@ -255,7 +259,7 @@ public class UEA_ML_Coursework {
             
             // Classifying the unclassified objects from Part 1
             try {
-                testData = WekaTools.loadData(testDataLocation, false);
+                testData = NumericArffReader.loadData(testDataLocation, false);
             } catch (Exception e){
                 System.out.println("Error loading test data\n" + e);
             }
@@ -299,7 +303,7 @@ public class UEA_ML_Coursework {
         try{
             String trainDataLocation = "./datasets/" + dataset + "/" + dataset + 
                     "_TRAIN.arff";
-            trainData = WekaTools.loadData(trainDataLocation, true);
+            trainData = DatasetCache.loadData(trainDataLocation, true);
         } catch (Exception e){
             System.out.println("There was an issue loading the data \n" + e );
         }
@@ -338,7 +342,7 @@ public class UEA_ML_Coursework {
             try {
                 String testDataLocation = "./datasets/" + dataset + "/" + dataset + 
                     "_TEST.arff";
-                testData = WekaTools.loadData(testDataLocation, true);
+                testData = DatasetCache.loadData(testDataLocation, true);
                 System.out.println("------Testing data properties------");
                 WekaTools.printDatasetInfo(testData);
             } catch (Exception e){
@@ -349,8 +353,11 @@ public class UEA_ML_Coursework {
             System.out.println("------Classification Results------");
             System.out.println("------Single KNN------");
             int[] actualResults = WekaTools.getClassValues(testData);
-            int[] classifiedInstances = WekaTools.classifyInstances(knn,
-                    testData);
+            double[] batchResults = knn.classifyBatch(testData);
+            int[] classifiedInstances = new int[batchResults.length];
+            for (int i = 0; i < batchResults.length; i++){
+                classifiedInstances[i] = (int)batchResults[i];
+            }
               
             // Get Accuracy
             System.out.printf("KNN Accuracy: %.2f%%\n",  
@@ -379,6 +386,788 @@ public class UEA_ML_Coursework {
         }
     }
     
+    /**
+     * Loads the training and test sets of a bundled dataset through the 
+     * dataset cache.
+     * @param dataset The name of the dataset.
+     * @return The training and the test set, either is null if it could not
+     * be loaded.
+     */
+    private static Instances[] loadSplit(String dataset){
+        
+        Instances[] split = new Instances[2];
+        
+        try{
+            split[0] = DatasetCache.loadData("./datasets/" + dataset + "/" 
+                    + dataset + "_TRAIN.arff", false);
+            split[1] = DatasetCache.loadData("./datasets/" + dataset + "/" 
+                    + dataset + "_TEST.arff", false);
+        } catch (Exception e){
+            System.out.println("There was an issue loading the data \n" + e );
+        }
+        
+        return split;
+    }
+    
+    /**
+     * Tests an approximate search strategy against the exhaustive search by
+     * reporting the recall@K, and the number of distances calculated next to
+     * the time taken per query. A tree that falls back to the linear search
+     * calculates as many distances as it.
+     * @param dataset The name of the dataset to be tested.
+     * @param strategy The search strategy to be compared to the linear one.
+     * @param k The number of neighbours searched for.
+     */
+    public static void testSearchRecall(String dataset, SearchStrategy strategy,
+            int k){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Search Recall------\n");
+            System.out.println("Dataset: " + dataset + "\nStrategy: " 
+                    + strategy + "\nK: " + k);
+            
+            // Each classifier standardises its own copy of the data
+            KNN exact = new KNN();
+            KNN approximate = new KNN();
+            exact.setK(k);
+            approximate.setK(k);
+            approximate.setSearchStrategy(strategy);
+            try{
+                exact.buildClassifier(new Instances(trainData));
+                approximate.buildClassifier(new Instances(trainData));
+            } catch (Exception e){
+                System.out.println("There was an issue building classifier\n"
+                        + e);
+                return;
+            }
+            
+            double recall = 0.0;
+            long exactDistances = 0, approximateDistances = 0;
+            long exactTime = 0, approximateTime = 0, start;
+            
+            for (int i = 0; i < testData.numInstances(); i++){
+                
+                start = System.nanoTime();
+                NeighbourQueue exactNeighbours = 
+                        exact.findNeighbours(testData.get(i));
+                exactTime += System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                NeighbourQueue approximateNeighbours = 
+                        approximate.findNeighbours(testData.get(i));
+                approximateTime += System.nanoTime() - start;
+                
+                exactDistances += exactNeighbours.getDistanceCount();
+                approximateDistances += approximateNeighbours.getDistanceCount();
+                
+                // A neighbour is a hit if it is as close as the K-th exact 
+                // neighbour, so ties are not counted as misses
+                double kthDistance = 
+                        exactNeighbours.distance(exactNeighbours.size() - 1);
+                int hits = 0;
+                for (int j = 0; j < approximateNeighbours.size(); j++){
+                    if (approximateNeighbours.distance(j) <= kthDistance){
+                        hits++;
+                    }
+                }
+                recall += (double)hits / exactNeighbours.size();
+            }
+            
+            int numOfQueries = testData.numInstances();
+            System.out.printf("Recall@%d: %.4f\n", k, recall / numOfQueries);
+            System.out.printf("Per query: %d distances in %.3fms (linear) "
+                    + "vs %d distances in %.3fms\n",
+                    exactDistances / numOfQueries, 
+                    exactTime / 1e6 / numOfQueries,
+                    approximateDistances / numOfQueries,
+                    approximateTime / 1e6 / numOfQueries);
+        }
+    }
+    
+    /**
+     * Tests that one built KNN classifier can score objects from several 
+     * threads at once. Every thread scores the whole test set in its own 
+     * order and the results are compared to single-threaded scoring.
+     * @param dataset The name of the dataset.
+     * @param numOfThreads The number of threads scoring at the same time.
+     */
+    public static void testConcurrentScoring(String dataset, 
+            int numOfThreads){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Concurrent Scoring------\n");
+            System.out.println("Dataset: " + dataset + "\nThreads: " 
+                    + numOfThreads);
+            
+            // Seeded so that ties are settled the same way on every thread
+            final KNN knn = new KNN(true, false, true);
+            knn.setK(5);
+            knn.setSeed(1);
+            try{
+                knn.buildClassifier(trainData);
+            } catch (Exception e){
+                System.out.println("There was an issue building classifier\n"
+                        + e);
+                return;
+            }
+            
+            final Instances queries = testData;
+            final int numOfQueries = queries.numInstances();
+            final VoteResult[] expected = new VoteResult[numOfQueries];
+            for (int i = 0; i < numOfQueries; i++){
+                expected[i] = knn.score(queries.get(i));
+            }
+            
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    numOfThreads);
+            List<Future<Integer>> mismatches = new ArrayList<Future<Integer>>();
+            
+            for (int t = 0; t < numOfThreads; t++){
+                final int offset = t;
+                mismatches.add(executor.submit(new Callable<Integer>(){
+                    @Override
+                    public Integer call(){
+                        int count = 0;
+                        // Start at a different instance on every thread
+                        for (int j = 0; j < numOfQueries; j++){
+                            int i = (j + offset * 7) % numOfQueries;
+                            VoteResult result = knn.score(queries.get(i));
+                            if (result.getClassIndex() 
+                                    != expected[i].getClassIndex()
+                                    || !Arrays.equals(result.getVotes(), 
+                                            expected[i].getVotes())
+                                    || !Arrays.equals(result.getDistribution(),
+                                            expected[i].getDistribution())){
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            
+            int totalMismatches = 0;
+            try{
+                for (Future<Integer> mismatch : mismatches){
+                    totalMismatches += mismatch.get();
+                }
+            } catch (Exception e){
+                System.out.println("There was an issue scoring concurrently\n"
+                        + e);
+            } finally {
+                executor.shutdown();
+            }
+            
+            System.out.println("Scored: " + (numOfThreads * numOfQueries));
+            System.out.println("Mismatches: " + totalMismatches);
+            System.out.println(totalMismatches == 0 ? "Passed" : "Failed");
+        }
+    }
+    
+    /**
+     * Tests that a KNN classifier and a KNN Ensemble saved to model files
+     * classify the test set the same way after loading them again.
+     * @param dataset The name of the dataset.
+     */
+    public static void testModelFile(String dataset){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Model Files------\n");
+            System.out.println("Dataset: " + dataset);
+            
+            // Seeded so that ties are settled the same way after loading
+            KNN knn = new KNN(true, false, true);
+            knn.setK(5);
+            knn.setSeed(1);
+            KnnEnsemble ensemble = new KnnEnsemble();
+            ensemble.setBestK(5);
+            ensemble.setSeed(1);
+            ensemble.setSharedData(true);
+            
+            try{
+                knn.buildClassifier(new Instances(trainData));
+                ensemble.buildClassifier(trainData);
+                
+                File knnFile = File.createTempFile("knn", ".model");
+                File ensembleFile = File.createTempFile("ensemble", ".model");
+                knnFile.deleteOnExit();
+                ensembleFile.deleteOnExit();
+                ModelFile.save(knn, knnFile);
+                ModelFile.save(ensemble, ensembleFile);
+                
+                long start = System.nanoTime();
+                KNN loadedKnn = ModelFile.loadKNN(knnFile);
+                KnnEnsemble loadedEnsemble = 
+                        ModelFile.loadEnsemble(ensembleFile);
+                long loadTime = System.nanoTime() - start;
+                
+                int mismatches = 0;
+                double[] knnResults = knn.classifyBatch(testData);
+                double[] loadedKnnResults = loadedKnn.classifyBatch(testData);
+                for (int i = 0; i < testData.numInstances(); i++){
+                    if (knnResults[i] != loadedKnnResults[i] 
+                            || ensemble.classifyInstance(testData.get(i)) 
+                            != loadedEnsemble.classifyInstance(
+                                    testData.get(i))){
+                        mismatches++;
+                    }
+                }
+                
+                System.out.println("KNN model: " + knnFile.length() 
+                        + " bytes");
+                System.out.println("Ensemble model: " + ensembleFile.length()
+                        + " bytes");
+                System.out.println("Loading took: " + loadTime / 1000000 
+                        + " ms");
+                System.out.println("Mismatches: " + mismatches);
+                System.out.println(mismatches == 0 ? "Passed" : "Failed");
+            } catch (Exception e){
+                System.out.println("There was an issue with the model files\n"
+                        + e);
+            }
+        }
+    }
+    
+    /**
+     * Tests a KNN classifier built on the first half of the training set and
+     * updated with the second half one instance at a time, against one built
+     * on the whole training set. Both must predict the same class and find
+     * neighbours at the same distances for every object of the test set.
+     * @param dataset The name of the dataset.
+     */
+    public static void testUpdateClassifier(String dataset){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Updateable KNN------\n");
+            System.out.println("Dataset: " + dataset);
+            
+            int half = trainData.numInstances() / 2;
+            KNN updatedKnn = new KNN();
+            updatedKnn.setK(5);
+            updatedKnn.setSeed(1);
+            KNN builtKnn = new KNN();
+            builtKnn.setK(5);
+            builtKnn.setSeed(1);
+            
+            try{
+                updatedKnn.buildClassifier(new Instances(trainData, 0, half));
+                long start = System.nanoTime();
+                for (int i = half; i < trainData.numInstances(); i++){
+                    updatedKnn.updateClassifier(trainData.get(i));
+                }
+                long updateTime = System.nanoTime() - start;
+                builtKnn.buildClassifier(new Instances(trainData));
+                
+                // Both models must find the same neighbours for every object
+                int predictionMismatches = 0, distanceMismatches = 0;
+                int updatedCorrect = 0, builtCorrect = 0;
+                for (int i = 0; i < testData.numInstances(); i++){
+                    double updatedPrediction = 
+                            updatedKnn.classifyInstance(testData.get(i));
+                    double builtPrediction = 
+                            builtKnn.classifyInstance(testData.get(i));
+                    if (updatedPrediction == testData.get(i).classValue()){
+                        updatedCorrect++;
+                    }
+                    if (builtPrediction == testData.get(i).classValue()){
+                        builtCorrect++;
+                    }
+                    if (updatedPrediction != builtPrediction){
+                        predictionMismatches++;
+                        System.out.println("Object " + i + ": updated "
+                                + "predicts " + updatedPrediction 
+                                + ", rebuilt predicts " + builtPrediction);
+                    }
+                    
+                    NeighbourQueue updatedNeighbours = 
+                            updatedKnn.findNeighbours(testData.get(i));
+                    NeighbourQueue builtNeighbours = 
+                            builtKnn.findNeighbours(testData.get(i));
+                    for (int j = 0; j < builtNeighbours.size(); j++){
+                        double updatedDistance = updatedNeighbours.distance(j);
+                        double builtDistance = builtNeighbours.distance(j);
+                        if (Math.abs(updatedDistance - builtDistance) 
+                                > 1e-9 * Math.max(1, builtDistance)){
+                            distanceMismatches++;
+                            System.out.println("Object " + i + ": neighbour "
+                                    + j + " is at " + updatedDistance 
+                                    + " after updating, " + builtDistance 
+                                    + " after rebuilding");
+                            break;
+                        }
+                    }
+                }
+                
+                System.out.println("Updates: " 
+                        + (trainData.numInstances() - half));
+                System.out.println("Update took: " + updateTime / 1000 
+                        / (trainData.numInstances() - half) + " us on average");
+                System.out.println("Updated accuracy: " + (double)updatedCorrect
+                        / testData.numInstances());
+                System.out.println("Rebuilt accuracy: " + (double)builtCorrect
+                        / testData.numInstances());
+                System.out.println("Prediction mismatches: " 
+                        + predictionMismatches);
+                System.out.println("Distance mismatches: " 
+                        + distanceMismatches);
+                System.out.println(predictionMismatches == 0 
+                        && distanceMismatches == 0 ? "Passed" : "Failed");
+            } catch (Exception e){
+                System.out.println("There was an issue updating the classifier"
+                        + "\n" + e);
+            }
+        }
+    }
+    
+    /**
+     * Tests KNN classifiers that keep a bounded window of the training set
+     * while they are updated with it one instance at a time. A full window
+     * must hold exactly its size, and the running means and variances must
+     * match statistics computed again over the instances in the window. A
+     * classifier built on more instances than the window must cut them down
+     * at its first update, to the last instances in order (sliding) or a
+     * sample of them in order (reservoir).
+     * @param dataset The name of the dataset.
+     * @param windowSize The largest number of instances kept.
+     */
+    public static void testStreamWindow(String dataset, int windowSize){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Stream Windows------\n");
+            System.out.println("Dataset: " + dataset);
+            System.out.println("Window size: " + windowSize);
+            
+            // Stream the instances in a random order, not sorted by class
+            trainData.randomize(new Random(1));
+            
+            // Attributes with means near 0 are taken as standardised already,
+            // move them away so the classifiers keep running statistics
+            for (Instances data : new Instances[]{trainData, testData}){
+                for (Instance instance : data){
+                    for (int j = 0; j < data.numAttributes() - 1; j++){
+                        instance.setValue(j, instance.value(j) + 100);
+                    }
+                }
+            }
+            
+            for (StreamWindow window : StreamWindow.values()){
+                KNN knn = new KNN();
+                knn.setK(5);
+                knn.setSeed(1);
+                knn.setStreamWindow(window, windowSize);
+                
+                try{
+                    knn.buildClassifier(new Instances(trainData, 0, 
+                            Math.min(windowSize, trainData.numInstances())));
+                    for (int i = windowSize; i < trainData.numInstances(); 
+                            i++){
+                        knn.updateClassifier(trainData.get(i));
+                    }
+                    
+                    int correct = 0;
+                    for (int i = 0; i < testData.numInstances(); i++){
+                        if (knn.classifyInstance(testData.get(i)) 
+                                == testData.get(i).classValue()){
+                            correct++;
+                        }
+                    }
+                    
+                    // A bounded window is full once the stream reaches its size
+                    int kept = knn.getFeatureMatrix().numInstances();
+                    int expected = window == StreamWindow.UNBOUNDED 
+                            || trainData.numInstances() < windowSize 
+                            ? trainData.numInstances() : windowSize;
+                    
+                    System.out.println(window + ": kept " + kept 
+                            + " instances (expected " + expected 
+                            + "), accuracy " + (double)correct 
+                            / testData.numInstances());
+                    
+                    int statisticsMismatches = checkStatistics(knn);
+                    System.out.println(kept == expected 
+                            && statisticsMismatches == 0 
+                            ? "Passed" : "Failed");
+                } catch (Exception e){
+                    System.out.println("There was an issue updating the "
+                            + "classifier\n" + e);
+                }
+            }
+            
+            // Built on more instances than the window, cut at the first update
+            int numOfBuilt = trainData.numInstances() - 1;
+            if (numOfBuilt <= windowSize){
+                System.out.println("Not more instances than the window, "
+                        + "no cut to check");
+                return;
+            }
+            Instances builtData = new Instances(trainData, 0, numOfBuilt);
+            Instance update = trainData.get(numOfBuilt);
+            
+            for (StreamWindow window : StreamWindow.values()){
+                KNN knn = new KNN();
+                knn.setK(5);
+                knn.setSeed(1);
+                knn.setStreamWindow(window, windowSize);
+                
+                try{
+                    knn.buildClassifier(new Instances(builtData));
+                    knn.updateClassifier(update);
+                    
+                    int kept = knn.getFeatureMatrix().numInstances();
+                    int expected = window == StreamWindow.UNBOUNDED 
+                            ? numOfBuilt + 1 : windowSize;
+                    boolean inOrder = keptInOrder(knn, builtData, update, 
+                            window);
+                    
+                    System.out.println(window + " built on " + numOfBuilt 
+                            + ": kept " + kept + " instances (expected " 
+                            + expected + "), " + (inOrder ? "in order" 
+                                    : "not in order"));
+                    
+                    int statisticsMismatches = checkStatistics(knn);
+                    System.out.println(kept == expected && inOrder 
+                            && statisticsMismatches == 0 
+                            ? "Passed" : "Failed");
+                } catch (Exception e){
+                    System.out.println("There was an issue updating the "
+                            + "classifier\n" + e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks that the running statistics of an updated classifier match
+     * statistics computed again over the instances it keeps.
+     * @param knn The updated classifier.
+     * @return The number of attributes whose statistics do not match.
+     */
+    private static int checkStatistics(KNN knn){
+        
+        int statisticsMismatches = 0;
+        AttributeStatistics statistics = knn.getStatistics();
+        if (statistics == null){
+            System.out.println("Not updated or not standardised,"
+                    + " no running statistics to check");
+            return statisticsMismatches;
+        }
+        
+        AttributeStatistics windowStatistics = 
+                new AttributeStatistics(statistics.numAttributes());
+        for (int i = 0; i < knn.getFeatureMatrix().numInstances(); i++){
+            windowStatistics.add(knn.toAttributeValues(i));
+        }
+        for (int j = 0; j < statistics.numAttributes(); j++){
+            if (!close(statistics.mean(j), windowStatistics.mean(j))
+                    || !close(statistics.variance(j), 
+                    windowStatistics.variance(j))){
+                statisticsMismatches++;
+                System.out.println("Attribute " + j + ": "
+                        + "running mean " + statistics.mean(j)
+                        + " and variance " + statistics.variance(j) 
+                        + ", window mean " + windowStatistics.mean(j) 
+                        + " and variance " + windowStatistics.variance(j));
+            }
+        }
+        System.out.println("Statistics mismatches: " + statisticsMismatches);
+        
+        return statisticsMismatches;
+    }
+    
+    /**
+     * Checks that a classifier built on more instances than its window kept
+     * the right ones in their order after its first update. Sliding keeps
+     * the last instances, with the oldest replaced by the update. Reservoir
+     * keeps a sample in order, with at most one of them replaced by the
+     * update. Unbounded keeps every instance and adds the update.
+     * @param knn The classifier after its first update.
+     * @param builtData The instances the classifier was built on.
+     * @param update The instance of the first update.
+     * @param window The stream window of the classifier.
+     * @return True if the right instances are kept in order.
+     */
+    private static boolean keptInOrder(KNN knn, Instances builtData, 
+            Instance update, StreamWindow window){
+        
+        FeatureMatrix kept = knn.getFeatureMatrix();
+        int numOfBuilt = builtData.numInstances();
+        int numOfKept = kept.numInstances();
+        int next = window == StreamWindow.SLIDING 
+                ? numOfBuilt - numOfKept + 1 : 0;
+        boolean updateKept = false;
+        
+        for (int i = 0; i < numOfKept; i++){
+            double[] attrValues = knn.toAttributeValues(i);
+            // The update takes the oldest slot of a sliding window
+            if (window == StreamWindow.SLIDING && i == 0 
+                    || window == StreamWindow.UNBOUNDED && i == numOfBuilt){
+                if (!sameInstance(attrValues, kept.label(i), update)){
+                    return false;
+                }
+                continue;
+            }
+            if (window == StreamWindow.RESERVOIR && !updateKept 
+                    && sameInstance(attrValues, kept.label(i), update)){
+                updateKept = true;
+                continue;
+            }
+            // The next instance kept comes after the last one in the data
+            while (next < numOfBuilt && !sameInstance(attrValues, 
+                    kept.label(i), builtData.get(next))){
+                if (window != StreamWindow.RESERVOIR){
+                    return false;
+                }
+                next++;
+            }
+            if (next == numOfBuilt){
+                return false;
+            }
+            next++;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks whether the attribute values and label of a kept instance are
+     * those of an instance, up to the rounding of the standardisation.
+     * @param attrValues The attribute values kept.
+     * @param label The label kept.
+     * @param instance The instance.
+     * @return True if they are the same instance.
+     */
+    private static boolean sameInstance(double[] attrValues, int label, 
+            Instance instance){
+        
+        if (label != (int)instance.classValue()){
+            return false;
+        }
+        for (int j = 0; j < attrValues.length; j++){
+            if (!close(attrValues[j], instance.value(j))){
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks whether two statistics are equal up to rounding.
+     * @param actual The value kept while updating.
+     * @param expected The value computed again.
+     * @return True if the values differ by at most a relative 1e-9.
+     */
+    private static boolean close(double actual, double expected){
+        return Math.abs(actual - expected) 
+                <= 1e-9 * Math.max(1, Math.abs(expected));
+    }
+    
+    /**
+     * Tests that KNN classifiers that scan compact copies of the training
+     * data find the same neighbours as one that scans the doubles.
+     * @param dataset The name of the dataset.
+     */
+    public static void testFeatureStorage(String dataset){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Feature Storage------\n");
+            System.out.println("Dataset: " + dataset);
+            
+            KNN exactKnn = new KNN();
+            exactKnn.setK(5);
+            
+            try{
+                exactKnn.buildClassifier(new Instances(trainData));
+                
+                for (FeatureStorage storage : FeatureStorage.values()){
+                    KNN knn = new KNN();
+                    knn.setK(5);
+                    knn.setFeatureStorage(storage);
+                    knn.buildClassifier(new Instances(trainData));
+                    
+                    int mismatches = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < testData.numInstances(); i++){
+                        NeighbourQueue neighbours = 
+                                knn.findNeighbours(testData.get(i));
+                        NeighbourQueue exact = 
+                                exactKnn.findNeighbours(testData.get(i));
+                        for (int j = 0; j < neighbours.size(); j++){
+                            if (neighbours.distance(j) != exact.distance(j)){
+                                mismatches++;
+                                break;
+                            }
+                        }
+                    }
+                    long searchTime = System.nanoTime() - start;
+                    
+                    System.out.println(storage + ": " + searchTime / 1000000 
+                            + " ms, mismatches: " + mismatches);
+                }
+            } catch (Exception e){
+                System.out.println("There was an issue with the feature "
+                        + "storage\n" + e);
+            }
+        }
+    }
+    
+    /**
+     * Tests that KNN classifiers with their training data off the heap, or
+     * mapped from a model file, classify the same as one with the data on
+     * the heap, and that building off the heap keeps less than half the heap
+     * the classifier on the heap keeps.
+     * @param dataset The name of the dataset.
+     */
+    public static void testOffHeap(String dataset){
+        
+        // Loading the data
+        Instances[] split = loadSplit(dataset);
+        Instances trainData = split[0], testData = split[1];
+        
+        if (trainData != null && testData != null){
+            
+            System.out.println("\n------Testing Off Heap Data------\n");
+            System.out.println("Dataset: " + dataset);
+            
+            KNN heapKnn = new KNN();
+            heapKnn.setK(5);
+            heapKnn.setSeed(1);
+            KNN offHeapKnn = new KNN();
+            offHeapKnn.setK(5);
+            offHeapKnn.setSeed(1);
+            offHeapKnn.setOffHeap(true);
+            
+            try{
+                // Measured first, before other classifiers are left around
+                long heapBytes = heapKeptByKNN(trainData, false);
+                long offHeapBytes = heapKeptByKNN(trainData, true);
+                boolean heapDropped = offHeapBytes < heapBytes / 2;
+                
+                heapKnn.buildClassifier(new Instances(trainData));
+                offHeapKnn.buildClassifier(new Instances(trainData));
+                
+                File knnFile = File.createTempFile("knn", ".model");
+                knnFile.deleteOnExit();
+                ModelFile.save(heapKnn, knnFile);
+                
+                long start = System.nanoTime();
+                KNN mappedKnn = ModelFile.mapKNN(knnFile);
+                long mapTime = System.nanoTime() - start;
+                
+                int mismatches = 0;
+                double[] heapResults = heapKnn.classifyBatch(testData);
+                double[] offHeapResults = offHeapKnn.classifyBatch(testData);
+                double[] mappedResults = mappedKnn.classifyBatch(testData);
+                for (int i = 0; i < testData.numInstances(); i++){
+                    if (heapResults[i] != offHeapResults[i] 
+                            || heapResults[i] != mappedResults[i]){
+                        mismatches++;
+                    }
+                }
+                mappedKnn.close();
+                offHeapKnn.close();
+                
+                System.out.println("Heap kept on the heap: " 
+                        + heapBytes / 1024 + " KB, off the heap: " 
+                        + offHeapBytes / 1024 + " KB");
+                System.out.println("Mapping took: " + mapTime / 1000000 
+                        + " ms");
+                System.out.println("Mismatches: " + mismatches);
+                System.out.println(mismatches == 0 && heapDropped 
+                        ? "Passed" : "Failed");
+            } catch (Exception e){
+                System.out.println("There was an issue with the off heap "
+                        + "data\n" + e);
+            }
+        }
+    }
+    
+    /**
+     * Measures the heap a built KNN classifier keeps, with the copy of the
+     * data it is built on left to the garbage collector. A few classifiers
+     * are built, so that one collection more or less does not decide it.
+     * @param trainData The training data.
+     * @param offHeap Flag to whether hold the training data off the heap.
+     * @return The number of bytes kept on the heap by each classifier.
+     * @throws Exception If a classifier cannot be built.
+     */
+    private static long heapKeptByKNN(Instances trainData, boolean offHeap)
+            throws Exception {
+        
+        KNN[] knns = new KNN[4];
+        long before = usedHeap();
+        for (int i = 0; i < knns.length; i++){
+            knns[i] = new KNN();
+            knns[i].setK(5);
+            knns[i].setOffHeap(offHeap);
+            knns[i].buildClassifier(new Instances(trainData));
+        }
+        long heapBytes = (usedHeap() - before) / knns.length;
+        
+        for (KNN knn : knns){
+            knn.close();
+        }
+        
+        return heapBytes;
+    }
+    
+    /**
+     * Measures the heap in use once the garbage collector has run. The use
+     * of each heap pool right after the collection is added up, which leaves
+     * out the buffers threads have claimed to allocate into since. The
+     * lowest use over a few collections is taken, as a collector may leave
+     * some dead objects in place instead of moving the live ones around them.
+     * @return The number of bytes in use on the heap.
+     */
+    private static long usedHeap(){
+        
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++){
+            System.gc();
+            long current = 0;
+            for (MemoryPoolMXBean pool 
+                    : ManagementFactory.getMemoryPoolMXBeans()){
+                if (pool.getType() == MemoryType.HEAP 
+                        && pool.getCollectionUsage() != null){
+                    current += pool.getCollectionUsage().getUsed();
+                }
+            }
+            used = Math.min(used, current);
+        }
+        
+        return used;
+    }
+    
     /**
      * The main function for testing the KNN classifier.
      * @param args Terminal arguments passed to the program
@@ -398,6 +1187,23 @@ public class UEA_ML_Coursework {
         testDataset("iris", true);
         testDataset("ecoli", true);
         testDataset("libras", true);
+        
+        testSearchRecall("page-blocks", SearchStrategy.KD_TREE, 5);
+        testSearchRecall("statlog-landsat", SearchStrategy.BALL_TREE, 5);
+        testSearchRecall("optical", SearchStrategy.HNSW, 5);
+        testSearchRecall("optical", SearchStrategy.LSH, 5);
+        
+        testConcurrentScoring("optical", 4);
+        
+        testModelFile("optical");
+        
+        testUpdateClassifier("libras");
+        
+        testStreamWindow("libras", 50);
+        
+        testFeatureStorage("optical");
+        
+        testOffHeap("optical");
 
 
     }
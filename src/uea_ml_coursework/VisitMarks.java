@@ -0,0 +1,67 @@
+/*
+ * These are the marks of the instances a search has visited, for the indices
+ * that must not visit an instance twice in one search. Every search starts by
+ * taking a new stamp and marks instances with it, so the marks of earlier
+ * searches never have to be cleared until the stamps run out. An index keeps
+ * one set of marks per thread, so a query neither allocates an array the size
+ * of the training data nor shares one with another thread.
+ */
+package uea_ml_coursework;
+
+import java.util.Arrays;
+
+public class VisitMarks {
+
+    // Class properties
+    private final int[] marks;
+    private int stamp;
+
+    /**
+     * Constructor for the marks of a set of instances.
+     * @param numOfInstances The number of instances.
+     */
+    public VisitMarks(int numOfInstances){
+        this.marks = new int[numOfInstances];
+        this.stamp = 0;
+    }
+
+    /**
+     * Creates marks that every thread gets its own copy of the first time it
+     * asks for them.
+     * @param numOfInstances The number of instances.
+     * @return The marks of each thread.
+     */
+    public static ThreadLocal<VisitMarks> perThread(final int numOfInstances){
+        return new ThreadLocal<VisitMarks>(){
+            @Override
+            protected VisitMarks initialValue(){
+                return new VisitMarks(numOfInstances);
+            }
+        };
+    }
+
+    /**
+     * Starts a new search, in which no instance has been visited yet.
+     */
+    public void clear(){
+        if (stamp == Integer.MAX_VALUE){
+            Arrays.fill(marks, 0);
+            stamp = 0;
+        }
+        stamp++;
+    }
+
+    /**
+     * Marks an instance as visited by the current search.
+     * @param instance The index of the instance.
+     * @return True if the search had not visited the instance before.
+     */
+    public boolean visit(int instance){
+        if (marks[instance] == stamp){
+            return false;
+        }
+        marks[instance] = stamp;
+        return true;
+    }
+
+}
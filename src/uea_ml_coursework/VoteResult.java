@@ -0,0 +1,73 @@
+/*
+ * This is the result of scoring one object with the KNN classifier. It holds
+ * the votes of the nearest neighbours for every class and the winning class.
+ * Every call creates its own result, so a built classifier can score objects
+ * from several threads at once without sharing any state between the calls.
+ */
+package uea_ml_coursework;
+
+public class VoteResult {
+
+    // Class properties
+    private final double[] votes;
+    private final int[] votesDiscrete;
+    private final int classIndex;
+    private final int k;
+
+    /**
+     * Constructor for holding the result of a classification.
+     * @param votes The (weighted) votes for each class.
+     * @param votesDiscrete The number of neighbours of each class.
+     * @param classIndex The class with the most votes.
+     * @param k The number of neighbours the classifier considers.
+     */
+    public VoteResult(double[] votes, int[] votesDiscrete, int classIndex,
+            int k){
+        this.votes = votes;
+        this.votesDiscrete = votesDiscrete;
+        this.classIndex = classIndex;
+        this.k = k;
+    }
+
+    /**
+     * Accessor for the class with the most votes.
+     * @return The class index of the result.
+     */
+    public int getClassIndex(){
+        return this.classIndex;
+    }
+
+    /**
+     * Accessor for the votes of each class. With the weighted voting scheme a
+     * neighbour votes 1 / (1 + distance), otherwise it votes 1.
+     * @return The votes of each class.
+     */
+    public double[] getVotes(){
+        return this.votes;
+    }
+
+    /**
+     * Accessor for the number of neighbours of each class.
+     * @return The number of neighbours of each class.
+     */
+    public int[] getVotesDiscrete(){
+        return this.votesDiscrete;
+    }
+
+    /**
+     * Calculates the share of the K neighbours that voted for each class
+     * (0.0 - 1.0).
+     * @return An array of distributions for each class.
+     */
+    public double[] getDistribution(){
+
+        double[] results = new double[votesDiscrete.length];
+
+        for (int i = 0; i < results.length; i++){
+            results[i] = (double)votesDiscrete[i]/(double)k;
+        }
+
+        return results;
+    }
+
+}